@@ -0,0 +1,68 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.util.concurrent.TimeUnit;
+import org.jdrupes.keycloak.moodleauth.moodle.service.Password;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the creation and clearing of a {@link Password}, which
+ * registers a weak reference with the purger for every instance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordBenchmark {
+
+    private final String value = "correct horse battery staple";
+
+    /**
+     * Create a password from a string, as done for a login.
+     *
+     * @return the password
+     */
+    @Benchmark
+    public Password create() {
+        return new Password(value.toCharArray());
+    }
+
+    /**
+     * Create a password and clear it.
+     *
+     * @return the password
+     */
+    @Benchmark
+    public Password createAndClear() {
+        var password = new Password(value.toCharArray());
+        password.clear();
+        return password;
+    }
+}
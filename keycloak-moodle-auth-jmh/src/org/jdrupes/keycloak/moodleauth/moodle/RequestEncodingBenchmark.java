@@ -0,0 +1,178 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jdrupes.keycloak.moodleauth.moodle.service.CommaSeparatedValues;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the preparation of requests, i.e. the encoding of the
+ * query and the form data and the construction of the URI. The
+ * `*Legacy` benchmarks use the encoding that was used before
+ * {@link FormEncoder} was introduced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("PMD.AvoidDuplicateLiterals")
+public class RequestEncodingBenchmark {
+
+    /** The number of values in the request. */
+    @Param({ "1", "20", "200" })
+    public int size;
+
+    private Map<String, Object> defaultParams;
+    private String encodedDefaults;
+    private Map<String, Object> queryParams;
+    private Map<String, Object> usersByField;
+    private Map<String, Object> nested;
+    private CommaSeparatedValues ids;
+    private URI uri;
+    private String query;
+
+    /**
+     * Creates the data to be encoded.
+     */
+    @Setup
+    public void setup() {
+        defaultParams = Map.of("moodlewsrestformat", "json",
+            "wstoken", "0123456789abcdef0123456789abcdef");
+        encodedDefaults = FormEncoder.encode(defaultParams);
+        queryParams = Map.of("wsfunction", "core_user_get_users_by_field");
+        List<String> names = new ArrayList<>();
+        List<Long> idList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            names.add("jörg.müller+" + i + "@example.org");
+            idList.add(1000L + i);
+        }
+        usersByField = new LinkedHashMap<>();
+        usersByField.put("field", "email");
+        usersByField.put("values", names);
+        List<Map<String, Object>> requests = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            requests.add(Map.of("function", "core_user_get_users_by_field",
+                "arguments", "{\"field\":\"id\",\"values\":[" + (1000 + i)
+                    + "]}"));
+        }
+        nested = Map.of("requests", requests);
+        ids = new CommaSeparatedValues(idList);
+        uri = URI.create("https://moodle.example.org/moodle/"
+            + MoodleServiceProvider.SERVICE_PATH);
+        query = FormEncoder.encode(encodedDefaults, queryParams);
+    }
+
+    /**
+     * Encode the query with the cached default params.
+     *
+     * @return the query
+     */
+    @Benchmark
+    public String query() {
+        return FormEncoder.encode(encodedDefaults, queryParams);
+    }
+
+    /**
+     * Encode the query with the legacy encoder.
+     *
+     * @return the query
+     */
+    @Benchmark
+    public String queryLegacy() {
+        return LegacyFormEncoder.query(defaultParams, queryParams);
+    }
+
+    /**
+     * Encode a list of values.
+     *
+     * @return the form data
+     */
+    @Benchmark
+    public String encodeData() {
+        return RestClient.encodeData(usersByField);
+    }
+
+    /**
+     * Encode a list of values with the legacy encoder.
+     *
+     * @return the form data
+     */
+    @Benchmark
+    public String encodeDataLegacy() {
+        return LegacyFormEncoder.encodeData(usersByField);
+    }
+
+    /**
+     * Encode nested data, i.e. a list of maps.
+     *
+     * @return the form data
+     */
+    @Benchmark
+    public String encodeNested() {
+        return RestClient.encodeData(nested);
+    }
+
+    /**
+     * Encode nested data with the legacy encoder.
+     *
+     * @return the form data
+     */
+    @Benchmark
+    public String encodeNestedLegacy() {
+        return LegacyFormEncoder.encodeData(nested);
+    }
+
+    /**
+     * Encode comma separated values.
+     *
+     * @return the value
+     */
+    @Benchmark
+    public String commaSeparatedValues() {
+        return ids.asQueryValue();
+    }
+
+    /**
+     * Construct the URI as done for every request.
+     *
+     * @return the URI
+     */
+    @Benchmark
+    public URI requestUri() {
+        return RestClient.requestUri(uri, query);
+    }
+}
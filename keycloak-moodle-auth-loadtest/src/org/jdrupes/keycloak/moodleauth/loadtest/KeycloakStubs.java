@@ -0,0 +1,280 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.loadtest;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+/**
+ * Provides the parts of Keycloak used by the authenticator: a realm
+ * with an in-memory user store and the flow context for a login.
+ * Transactions are not emulated, changes of users are visible
+ * immediately.
+ */
+public class KeycloakStubs {
+
+    private final AuthenticatorConfigModel config;
+    private final Map<String, UserModel> users = new ConcurrentHashMap<>();
+    private final RealmModel realm;
+    private final UserProvider userProvider;
+    private final RealmProvider realmProvider;
+    private final KeycloakSession session;
+    private final KeycloakSessionFactory sessionFactory;
+    private final LoginFormsProvider forms;
+
+    /**
+     * The outcome of a login.
+     */
+    public static class Outcome {
+
+        /**
+         * The result reported by the authenticator.
+         */
+        public enum Result {
+            NONE, SUCCESS, FAILURE, CHALLENGE, CANCELLED
+        }
+
+        private Result result = Result.NONE;
+        private AuthenticationFlowError error;
+        private UserModel user;
+
+        /**
+         * Returns the result.
+         *
+         * @return the result
+         */
+        public Result result() {
+            return result;
+        }
+
+        /**
+         * Returns the error reported with a failure.
+         *
+         * @return the error
+         */
+        public AuthenticationFlowError error() {
+            return error;
+        }
+
+        /**
+         * Returns the user set by the authenticator.
+         *
+         * @return the user model
+         */
+        public UserModel user() {
+            return user;
+        }
+    }
+
+    /**
+     * Instantiates new stubs with the given authenticator configuration.
+     *
+     * @param config the config
+     */
+    public KeycloakStubs(Map<String, String> config) {
+        this.config = new AuthenticatorConfigModel();
+        this.config.setAlias("loadtest");
+        this.config.setConfig(new ConcurrentHashMap<>(config));
+        realm = Stubs.create(RealmModel.class, (method, args) -> {
+            return switch (method.getName()) {
+            case "getId", "getName" -> "loadtest";
+            default -> Stubs.UNHANDLED;
+            };
+        });
+        userProvider = Stubs.create(UserProvider.class, (method, args) -> {
+            if ("getUserByUsername".equals(method.getName())) {
+                return users.get(((String) args[1]).toLowerCase(Locale.ROOT));
+            }
+            if ("addUser".equals(method.getName()) && args.length == 2) {
+                return addUser((String) args[1]);
+            }
+            if ("getUsersCount".equals(method.getName())) {
+                return users.size();
+            }
+            return Stubs.UNHANDLED;
+        });
+        realmProvider = Stubs.create(RealmProvider.class,
+            (method, args) -> "getRealm".equals(method.getName()) ? realm
+                : Stubs.UNHANDLED);
+        session = Stubs.create(KeycloakSession.class, (method, args) -> {
+            return switch (method.getName()) {
+            case "users" -> userProvider;
+            case "realms" -> realmProvider;
+            case "getKeycloakSessionFactory" -> sessionFactory();
+            default -> Stubs.UNHANDLED;
+            };
+        });
+        sessionFactory = Stubs.create(KeycloakSessionFactory.class,
+            (method, args) -> "create".equals(method.getName()) ? session
+                : Stubs.UNHANDLED);
+        forms = Stubs.noop(LoginFormsProvider.class);
+    }
+
+    // Allows the session stub to refer to the factory created after it
+    private KeycloakSessionFactory sessionFactory() {
+        return sessionFactory;
+    }
+
+    /**
+     * Sets a value of the authenticator configuration.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the keycloak stubs
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public KeycloakStubs setConfig(String key, String value) {
+        config.getConfig().put(key, value);
+        return this;
+    }
+
+    /**
+     * Returns the number of users in the realm.
+     *
+     * @return the count
+     */
+    public int userCount() {
+        return users.size();
+    }
+
+    private UserModel addUser(String username) {
+        var key = username.toLowerCase(Locale.ROOT);
+        var user = user(key);
+        if (users.putIfAbsent(key, user) != null) {
+            throw new ModelDuplicateException("User exists: " + username);
+        }
+        return user;
+    }
+
+    /**
+     * Creates a user that supports the properties and attributes
+     * used by the authenticator.
+     */
+    private static UserModel user(String username) {
+        Map<String, Object> properties = new ConcurrentHashMap<>();
+        properties.put("Id", UUID.randomUUID().toString());
+        properties.put("Username", username);
+        return Stubs.create(UserModel.class, (method, args) -> {
+            var name = method.getName();
+            if ("getFirstAttribute".equals(name)) {
+                return properties.get("attribute:" + args[0]);
+            }
+            if ("setSingleAttribute".equals(name)) {
+                properties.put("attribute:" + args[0], args[1]);
+                return null;
+            }
+            if (name.startsWith("set") && args.length == 1) {
+                if (args[0] == null) {
+                    properties.remove(name.substring(3));
+                } else {
+                    properties.put(name.substring(3), args[0]);
+                }
+                return null;
+            }
+            if (args.length == 0) {
+                var value = properties.get(name.startsWith("is")
+                    ? name.substring(2)
+                    : name.startsWith("get") ? name.substring(3) : name);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return Stubs.UNHANDLED;
+        });
+    }
+
+    /**
+     * Creates the context for submitting the login form.
+     *
+     * @param username the username
+     * @param password the password
+     * @param address the remote address
+     * @param outcome receives the outcome
+     * @return the authentication flow context
+     */
+    @SuppressWarnings("PMD.CognitiveComplexity")
+    public AuthenticationFlowContext context(String username,
+            String password, String address, Outcome outcome) {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle("username", username);
+        formData.putSingle("password", password);
+        var request = Stubs.create(HttpRequest.class,
+            (method, args) -> "getDecodedFormParameters"
+                .equals(method.getName()) ? formData : Stubs.UNHANDLED);
+        var connection = Stubs.create(ClientConnection.class,
+            (method, args) -> switch (method.getName()) {
+            case "getRemoteAddr", "getRemoteHost" -> address;
+            default -> Stubs.UNHANDLED;
+            });
+        return Stubs.create(AuthenticationFlowContext.class,
+            (method, args) -> {
+                switch (method.getName()) {
+                case "getHttpRequest":
+                    return request;
+                case "getAuthenticatorConfig":
+                    return config;
+                case "getSession":
+                    return session;
+                case "getRealm":
+                    return realm;
+                case "getConnection":
+                    return connection;
+                case "form":
+                    return forms;
+                case "getUser":
+                    return outcome.user;
+                case "setUser":
+                    outcome.user = (UserModel) args[0];
+                    return null;
+                case "success":
+                    outcome.result = Outcome.Result.SUCCESS;
+                    return null;
+                case "challenge":
+                    outcome.result = Outcome.Result.CHALLENGE;
+                    return null;
+                case "failureChallenge":
+                    outcome.result = Outcome.Result.FAILURE;
+                    outcome.error = (AuthenticationFlowError) args[0];
+                    return null;
+                case "cancelLogin":
+                    outcome.result = Outcome.Result.CANCELLED;
+                    return null;
+                default:
+                    return Stubs.UNHANDLED;
+                }
+            });
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.loadtest;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Provides the (simulated) processing time of a request.
+ */
+@FunctionalInterface
+public interface Latency {
+
+    /**
+     * Returns the processing time for the next request.
+     *
+     * @return the duration
+     */
+    Duration next();
+
+    /**
+     * No delay.
+     *
+     * @return the latency
+     */
+    static Latency none() {
+        return () -> Duration.ZERO;
+    }
+
+    /**
+     * Always the same delay.
+     *
+     * @param delay the delay
+     * @return the latency
+     */
+    static Latency fixed(Duration delay) {
+        return () -> delay;
+    }
+
+    /**
+     * Delays uniformly distributed between `min` and `max`.
+     *
+     * @param min the minimum
+     * @param max the maximum
+     * @return the latency
+     */
+    static Latency uniform(Duration min, Duration max) {
+        long minNanos = min.toNanos();
+        long range = max.toNanos() - minNanos;
+        return () -> Duration.ofNanos(minNanos + (range <= 0 ? 0
+            : ThreadLocalRandom.current().nextLong(range + 1)));
+    }
+
+    /**
+     * Delays with a log-normal distribution, which models the response
+     * times of web applications reasonably well. With `sigma` 0.5, about
+     * 5% of the delays are more than twice the median.
+     *
+     * @param median the median
+     * @param sigma the standard deviation of the underlying
+     * normal distribution
+     * @return the latency
+     */
+    static Latency logNormal(Duration median, double sigma) {
+        double mu = Math.log(median.toNanos());
+        return () -> Duration.ofNanos((long) Math.exp(
+            mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    /**
+     * Returns a latency that uses the `spike` latency for the given
+     * fraction of the requests and this latency for the others.
+     *
+     * @param probability the probability of a spike
+     * @param spike the latency for spikes
+     * @return the latency
+     */
+    default Latency withSpikes(double probability, Latency spike) {
+        return () -> ThreadLocalRandom.current().nextDouble() < probability
+            ? spike.next()
+            : next();
+    }
+}
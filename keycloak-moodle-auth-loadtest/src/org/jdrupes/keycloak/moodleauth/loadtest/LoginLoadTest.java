@@ -0,0 +1,405 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jdrupes.keycloak.moodleauth.MoodleAuthenticator;
+import org.jdrupes.keycloak.moodleauth.MoodleAuthenticatorFactory;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleServiceProvider;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleSites;
+import org.keycloak.authentication.AuthenticationFlowError;
+
+/**
+ * Drives {@link MoodleAuthenticator#action} with concurrent logins on
+ * virtual threads and reports throughput, latency percentiles, the
+ * Moodle requests per login and the allocation per login.
+ *
+ * Unless `loadtest.moodleUrl` is set, the logins are verified by an
+ * embedded {@link MoodleStandIn}. Note that the allocation reported
+ * is the allocation of the JVM and therefore includes the allocation
+ * of the embedded stand-in. For the allocation of the authenticator
+ * only, run the stand-in in a separate JVM.
+ *
+ * The test is configured with system properties:
+ *
+ *  * `loadtest.scenarios`: the scenarios to run, defaults to
+ *    "cold,warm,wrong,degraded"
+ *  * `loadtest.users`: the number of users (2000)
+ *  * `loadtest.logins`: the number of logins per scenario (20000)
+ *  * `loadtest.concurrency`: the number of concurrent logins (200)
+ *  * `loadtest.moodleUrl`: the URL of an external Moodle (stand-in)
+ *  * `loadtest.config.<key>`: authenticator configuration values
+ *    (see {@link MoodleAuthenticatorFactory})
+ *
+ * The login rate limits are disabled by default, because they would
+ * otherwise dominate the results.
+ */
+@SuppressWarnings({ "PMD.SystemPrintln", "PMD.DoNotUseThreads" })
+public class LoginLoadTest {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(LoginLoadTest.class.getName());
+
+    /**
+     * The scenarios.
+     */
+    public enum Scenario {
+        /** Every user logs in for the first time. */
+        COLD,
+        /** Users that have logged in before log in again. */
+        WARM,
+        /** Logins with wrong passwords. */
+        WRONG,
+        /** Logins while Moodle is slow and fails partially. */
+        DEGRADED
+    }
+
+    // The keys of the authenticator's configuration
+    private static final String MOODLE_URL = "moodleUrl";
+    private static final String USER_LOGIN_RATE = "userLoginRate";
+    private static final String ADDRESS_LOGIN_RATE = "addressLoginRate";
+
+    private final int users;
+    private final int logins;
+    private final int concurrency;
+    private final String moodleUrl;
+    private final Map<String, String> config = new HashMap<>();
+    private MoodleStandIn standIn;
+
+    /**
+     * Instantiates a new load test.
+     *
+     * @param users the number of users
+     * @param logins the number of logins per scenario
+     * @param concurrency the number of concurrent logins
+     * @param moodleUrl the moodle url or `null` to use an embedded
+     * {@link MoodleStandIn}
+     */
+    public LoginLoadTest(int users, int logins, int concurrency,
+            String moodleUrl) {
+        this.users = users;
+        this.logins = logins;
+        this.concurrency = concurrency;
+        this.moodleUrl = moodleUrl;
+        config.put(USER_LOGIN_RATE, "1000000");
+        config.put(ADDRESS_LOGIN_RATE, "1000000");
+    }
+
+    /**
+     * Sets a value of the authenticator configuration.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the login load test
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public LoginLoadTest setConfig(String key, String value) {
+        config.put(key, value);
+        return this;
+    }
+
+    /**
+     * Runs the scenarios.
+     *
+     * @param scenarios the scenarios
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void run(Scenario... scenarios) throws IOException {
+        if (moodleUrl == null) {
+            standIn = new MoodleStandIn().setUserCount(users).start();
+        }
+        MoodleServiceProvider.warmUp();
+        System.out.println(Report.HEADER);
+        try {
+            for (var scenario : scenarios) {
+                if (scenario == Scenario.DEGRADED && standIn == null) {
+                    System.out.println("Scenario " + scenario
+                        + " requires the embedded stand-in, skipped.");
+                    continue;
+                }
+                System.out.println(run(scenario));
+            }
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+    }
+
+    private Report run(Scenario scenario) {
+        if (standIn != null) {
+            configureStandIn(scenario == Scenario.DEGRADED);
+        }
+        var url = moodleUrl == null ? standIn.uri().toString() : moodleUrl;
+        var sites = new MoodleSites();
+        try {
+            var authenticator = new MoodleAuthenticator(sites);
+            var keycloak = new KeycloakStubs(config);
+            keycloak.setConfig(MOODLE_URL, url);
+            int count = logins;
+            if (scenario == Scenario.COLD) {
+                count = Math.min(logins, users);
+            }
+            if (scenario == Scenario.WARM) {
+                // Log in every user once
+                execute(authenticator, keycloak, users,
+                    i -> i, i -> password());
+            }
+            if (standIn != null) {
+                standIn.resetStatistics();
+            }
+            return switch (scenario) {
+            case COLD -> measure(scenario, authenticator, keycloak, count,
+                i -> i, i -> password());
+            case WRONG -> measure(scenario, authenticator, keycloak, count,
+                i -> randomUser(), i -> "wrong" + i);
+            default -> measure(scenario, authenticator, keycloak, count,
+                i -> randomUser(), i -> password());
+            };
+        } finally {
+            sites.close();
+        }
+    }
+
+    private void configureStandIn(boolean degraded) {
+        if (degraded) {
+            standIn.setWorkers(64).setLockTimeout(Duration.ofSeconds(1))
+                .setErrorRate(0.02).setUnableToLockRate(0.05)
+                .setLatency(Latency.logNormal(Duration.ofMillis(150), 0.6))
+                .setLatency(MoodleStandIn.TOKEN_ENDPOINT,
+                    Latency.logNormal(Duration.ofMillis(400), 0.6).withSpikes(
+                        0.02, Latency.fixed(Duration.ofSeconds(5))));
+            return;
+        }
+        // Obtaining the token includes checking the password hash
+        // and is therefore noticeably slower than the other requests.
+        standIn.setWorkers(256).setLockTimeout(Duration.ofSeconds(2))
+            .setErrorRate(0).setUnableToLockRate(0)
+            .setLatency(Latency.logNormal(Duration.ofMillis(10), 0.5))
+            .setLatency(MoodleStandIn.TOKEN_ENDPOINT,
+                Latency.logNormal(Duration.ofMillis(40), 0.4));
+    }
+
+    private String password() {
+        return standIn == null ? System.getProperty("loadtest.password",
+            "secret") : standIn.password();
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(users);
+    }
+
+    /**
+     * Provides a value for the i-th login.
+     *
+     * @param <T> the type of the value
+     */
+    @FunctionalInterface
+    private interface PerLogin<T> {
+        T value(int index);
+    }
+
+    private Report measure(Scenario scenario,
+            MoodleAuthenticator authenticator, KeycloakStubs keycloak,
+            int count, PerLogin<Integer> user, PerLogin<String> password) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+        long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+        var report = execute(authenticator, keycloak, count, user, password);
+        report.scenario = scenario;
+        report.elapsed = System.nanoTime() - start;
+        report.allocated
+            = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+        if (standIn != null) {
+            report.tokenRequests
+                = standIn.requests(MoodleStandIn.TOKEN_ENDPOINT);
+            report.userRequests
+                = standIn.requests(MoodleStandIn.USERS_BY_FIELD);
+            report.siteInfoRequests
+                = standIn.requests(MoodleStandIn.SITE_INFO);
+            report.moodleErrors = standIn.errors();
+        }
+        return report;
+    }
+
+    @SuppressWarnings({ "PMD.AvoidCatchingGenericException",
+        "PMD.AvoidInstantiatingObjectsInLoops" })
+    private Report execute(MoodleAuthenticator authenticator,
+            KeycloakStubs keycloak, int count, PerLogin<Integer> user,
+            PerLogin<String> password) {
+        var report = new Report(count);
+        var next = new AtomicInteger();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int worker = 0; worker < concurrency; worker++) {
+                executor.execute(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < count) {
+                        int userIndex = user.value(index);
+                        var outcome = new KeycloakStubs.Outcome();
+                        var context = keycloak.context(
+                            MoodleStandIn.username(userIndex),
+                            password.value(index), address(userIndex),
+                            outcome);
+                        long started = System.nanoTime();
+                        try {
+                            authenticator.action(context);
+                            report.record(index,
+                                System.nanoTime() - started, outcome);
+                        } catch (RuntimeException e) {
+                            report.record(index,
+                                System.nanoTime() - started, null);
+                            logger.log(Level.FINE, e,
+                                () -> "Login failed: " + e.getMessage());
+                        }
+                    }
+                });
+            }
+        }
+        return report;
+    }
+
+    private static String address(int user) {
+        return "10." + (user >> 16 & 0xff) + "." + (user >> 8 & 0xff)
+            + "." + (user & 0xff);
+    }
+
+    /**
+     * The results of a scenario.
+     */
+    @SuppressWarnings("PMD.DataClass")
+    private static class Report {
+
+        /* default */ static final String HEADER = String.format(
+            "%-9s %7s %7s %7s %7s %8s %8s %8s %8s %8s %22s %10s",
+            "scenario", "logins", "ok", "invalid", "failed", "logins/s",
+            "p50 ms", "p95 ms", "p99 ms", "p999 ms",
+            "token/user/site calls", "alloc/login");
+
+        private final long[] latencies;
+        private final Map<KeycloakStubs.Outcome.Result, LongAdder> results
+            = new EnumMap<>(KeycloakStubs.Outcome.Result.class);
+        private final LongAdder invalid = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        /* default */ Scenario scenario;
+        /* default */ long elapsed;
+        /* default */ long allocated;
+        /* default */ long tokenRequests = -1;
+        /* default */ long userRequests = -1;
+        /* default */ long siteInfoRequests = -1;
+        /* default */ long moodleErrors = -1;
+
+        /* default */ Report(int count) {
+            latencies = new long[count];
+            for (var result : KeycloakStubs.Outcome.Result.values()) {
+                results.put(result, new LongAdder());
+            }
+        }
+
+        /* default */ void record(int index, long latency,
+                KeycloakStubs.Outcome outcome) {
+            latencies[index] = latency;
+            if (outcome == null) {
+                failed.increment();
+                return;
+            }
+            results.get(outcome.result()).increment();
+            if (outcome.result() == KeycloakStubs.Outcome.Result.FAILURE) {
+                if (outcome.error()
+                    == AuthenticationFlowError.INVALID_CREDENTIALS) {
+                    invalid.increment();
+                } else {
+                    failed.increment();
+                }
+            }
+        }
+
+        private double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))]
+                / 1_000_000.0;
+        }
+
+        private String perLogin(long value) {
+            return value < 0 ? "-"
+                : String.format(Locale.ROOT, "%.2f",
+                    (double) value / latencies.length);
+        }
+
+        @Override
+        public String toString() {
+            var sorted = latencies.clone();
+            Arrays.sort(sorted);
+            long count = latencies.length;
+            return String.format(Locale.ROOT,
+                "%-9s %7d %7d %7d %7d %8.0f %8.1f %8.1f %8.1f %8.1f %22s %10s",
+                scenario.name().toLowerCase(Locale.ROOT), count,
+                results.get(KeycloakStubs.Outcome.Result.SUCCESS).sum(),
+                invalid.sum(), failed.sum(),
+                count / (elapsed / 1_000_000_000.0),
+                percentile(sorted, 0.5), percentile(sorted, 0.95),
+                percentile(sorted, 0.99), percentile(sorted, 0.999),
+                perLogin(tokenRequests) + "/" + perLogin(userRequests) + "/"
+                    + perLogin(siteInfoRequests),
+                allocated < 0 ? "-" : (allocated / count / 1024) + " KiB");
+        }
+    }
+
+    /**
+     * Runs the load test as configured by the system properties.
+     *
+     * @param args the arguments (not used)
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+        var test = new LoginLoadTest(
+            Integer.getInteger("loadtest.users", 2000),
+            Integer.getInteger("loadtest.logins", 20_000),
+            Integer.getInteger("loadtest.concurrency", 200),
+            System.getProperty("loadtest.moodleUrl"));
+        var prefix = "loadtest.config.";
+        for (var name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                test.setConfig(name.substring(prefix.length()),
+                    System.getProperty(name));
+            }
+        }
+        test.run(Arrays.stream(System.getProperty("loadtest.scenarios",
+            "cold,warm,wrong,degraded").split(","))
+            .map(s -> Scenario.valueOf(s.trim().toUpperCase(Locale.ROOT)))
+            .toArray(Scenario[]::new));
+    }
+}
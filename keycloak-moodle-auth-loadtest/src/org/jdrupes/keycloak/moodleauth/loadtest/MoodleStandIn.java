@@ -0,0 +1,620 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An embedded HTTP server that emulates the parts of Moodle used
+ * by the authenticator, i.e. `login/token.php` and the web service
+ * functions `core_user_get_users_by_field` and
+ * `core_webservice_get_site_info` of `webservice/rest/server.php`.
+ *
+ * The server has a population of users named `user00000`,
+ * `user00001`, ... that all have the same password. A configurable
+ * fraction of the users has no first and last name in the user
+ * record, which makes the authenticator fall back to the site info.
+ *
+ * The processing time of requests, the rate of failing requests
+ * and the number of requests that can be processed concurrently
+ * (the number of PHP workers) can be configured. Requests that
+ * cannot obtain a worker within the lock timeout fail with
+ * `ex_unabletolock`, as Moodle does if it cannot obtain the
+ * session lock. Latencies, rates and the number of workers may be
+ * changed while the server is running.
+ */
+@SuppressWarnings({ "PMD.GodClass", "PMD.TooManyMethods",
+    "PMD.AvoidDuplicateLiterals" })
+public class MoodleStandIn implements AutoCloseable {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(MoodleStandIn.class.getName());
+
+    /** The key used for the token requests in the statistics. */
+    public static final String TOKEN_ENDPOINT = "login/token.php";
+    /** The path of the web service endpoint. */
+    public static final String SERVICE_ENDPOINT
+        = "webservice/rest/server.php";
+    /** The function that looks up users. */
+    public static final String USERS_BY_FIELD
+        = "core_user_get_users_by_field";
+    /** The function that returns the site info. */
+    public static final String SITE_INFO = "core_webservice_get_site_info";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String[] FIRST_NAMES = { "Anna", "Ben", "Clara",
+        "David", "Emma", "Felix", "Greta", "Jörg", "Lena", "Zoë" };
+    private static final String[] LAST_NAMES = { "Becker", "Fischer",
+        "Koch", "Meyer", "Müller", "Schmidt", "Weber", "Çelik" };
+    private static final int FIRST_ID = 2;
+
+    private int userCount = 1000;
+    private String password = "secret";
+    private double incompleteProfiles;
+    private int workers = 256;
+    private volatile Duration lockTimeout = Duration.ofSeconds(2);
+    private volatile Latency defaultLatency = Latency.none();
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+    private volatile double errorRate;
+    private volatile double unableToLockRate;
+    private final String tokenPrefix
+        = HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextLong());
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder lockFailures = new LongAdder();
+    private Map<String, Integer> userIndex;
+    private volatile Semaphore workerSlots;
+    private ExecutorService executor;
+    private HttpServer server;
+
+    /**
+     * Sets the number of users. Defaults to 1000.
+     *
+     * @param userCount the user count
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setUserCount(int userCount) {
+        this.userCount = userCount;
+        return this;
+    }
+
+    /**
+     * Returns the name of the user with the given index.
+     *
+     * @param index the index
+     * @return the user name
+     */
+    public static String username(int index) {
+        return String.format("user%05d", index);
+    }
+
+    /**
+     * Sets the password of all users. Defaults to "secret".
+     *
+     * @param password the password
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setPassword(String password) {
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Returns the password of all users.
+     *
+     * @return the password
+     */
+    public String password() {
+        return password;
+    }
+
+    /**
+     * Sets the fraction of users without first and last name.
+     *
+     * @param fraction the fraction
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setIncompleteProfiles(double fraction) {
+        this.incompleteProfiles = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the number of requests that are processed concurrently.
+     * Defaults to 256.
+     *
+     * @param workers the workers
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setWorkers(int workers) {
+        this.workers = workers;
+        if (workerSlots != null) {
+            // Requests in progress still complete with the old limit
+            workerSlots = new Semaphore(workers, true);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the time that a request waits for a worker before failing
+     * with `ex_unabletolock`. Defaults to 2 seconds.
+     *
+     * @param lockTimeout the lock timeout
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setLockTimeout(Duration lockTimeout) {
+        this.lockTimeout = lockTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the latency for all requests without a specific latency.
+     *
+     * @param latency the latency
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setLatency(Latency latency) {
+        this.defaultLatency = latency;
+        return this;
+    }
+
+    /**
+     * Sets the latency for the given web service function
+     * or {@link #TOKEN_ENDPOINT}.
+     *
+     * @param function the function
+     * @param latency the latency
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setLatency(String function, Latency latency) {
+        latencies.put(function, latency);
+        return this;
+    }
+
+    /**
+     * Sets the fraction of requests that fail with a general error.
+     *
+     * @param errorRate the error rate
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of requests that fail with `ex_unabletolock`
+     * independent of the load.
+     *
+     * @param rate the rate
+     * @return the moodle stand in
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleStandIn setUnableToLockRate(double rate) {
+        this.unableToLockRate = rate;
+        return this;
+    }
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @return the moodle stand in
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public MoodleStandIn start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Starts the server on the given port of the loopback interface.
+     *
+     * @param port the port
+     * @return the moodle stand in
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public MoodleStandIn start(int port) throws IOException {
+        userIndex = new HashMap<>();
+        for (int i = 0; i < userCount; i++) {
+            userIndex.put(username(i), i);
+        }
+        workerSlots = new Semaphore(workers, true);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        logger.fine(() -> "Moodle stand-in listening on " + uri());
+        return this;
+    }
+
+    /**
+     * Returns the base URI of the emulated Moodle site.
+     *
+     * @return the uri
+     */
+    public URI uri() {
+        return URI.create("http://"
+            + server.getAddress().getAddress().getHostAddress() + ":"
+            + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+    /**
+     * Returns the number of requests for the given function or
+     * {@link #TOKEN_ENDPOINT}.
+     *
+     * @param function the function
+     * @return the count
+     */
+    public long requests(String function) {
+        var counter = requests.get(function);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Returns the total number of requests.
+     *
+     * @return the count
+     */
+    public long requests() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Returns the number of requests that failed with a general
+     * error or `ex_unabletolock`.
+     *
+     * @return the count
+     */
+    public long errors() {
+        return errors.sum();
+    }
+
+    /**
+     * Returns the number of requests that failed with
+     * `ex_unabletolock`.
+     *
+     * @return the count
+     */
+    public long lockFailures() {
+        return lockFailures.sum();
+    }
+
+    /**
+     * Resets the statistics.
+     */
+    public void resetStatistics() {
+        requests.clear();
+        errors.reset();
+        lockFailures.reset();
+    }
+
+    @SuppressWarnings({ "PMD.AvoidCatchingGenericException",
+        "PMD.AvoidInstantiatingObjectsInLoops" })
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, String> params = new HashMap<>();
+            parse(exchange.getRequestURI().getRawQuery(), params);
+            parse(new String(exchange.getRequestBody().readAllBytes(),
+                StandardCharsets.UTF_8), params);
+            String function = exchange.getRequestURI().getPath()
+                .endsWith(TOKEN_ENDPOINT) ? TOKEN_ENDPOINT
+                    : params.getOrDefault("wsfunction", "");
+            requests.computeIfAbsent(function, k -> new LongAdder())
+                .increment();
+            Object result;
+            try {
+                result = process(function, params);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, e, () -> "Failed: " + e);
+                result = error(function, "coding_exception", "codingerror",
+                    e.toString());
+            }
+            var body = mapper.writeValueAsBytes(result);
+            exchange.getResponseHeaders().set("Content-Type",
+                "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private static void parse(String encoded, Map<String, String> params) {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (var param : encoded.split("&")) {
+            int sep = param.indexOf('=');
+            if (sep < 0) {
+                continue;
+            }
+            params.put(
+                URLDecoder.decode(param.substring(0, sep),
+                    StandardCharsets.UTF_8),
+                URLDecoder.decode(param.substring(sep + 1),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    private Object process(String function, Map<String, String> params)
+            throws InterruptedException {
+        var slots = workerSlots;
+        if (!slots.tryAcquire(lockTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return unableToLock(function);
+        }
+        try {
+            var latency = latencies.getOrDefault(function, defaultLatency)
+                .next();
+            if (latency.isPositive()) {
+                Thread.sleep(latency);
+            }
+            var random = ThreadLocalRandom.current().nextDouble();
+            if (random < unableToLockRate) {
+                return unableToLock(function);
+            }
+            if (random < unableToLockRate + errorRate) {
+                errors.increment();
+                return error(function, "moodle_exception",
+                    "generalexceptionmessage",
+                    "Error code: generalexceptionmessage");
+            }
+            if (TOKEN_ENDPOINT.equals(function)) {
+                return token(params);
+            }
+            var user = userByToken(params.get("wstoken"));
+            if (user < 0) {
+                return error(function, "moodle_exception", "invalidtoken",
+                    "Invalid token - token not found");
+            }
+            return switch (function) {
+            case USERS_BY_FIELD -> usersByField(params);
+            case SITE_INFO -> siteInfo(user);
+            default -> error(function, "dml_missing_record_exception",
+                "invalidrecord", "Can't find data record in database"
+                    + " table external_functions.");
+            };
+        } finally {
+            slots.release();
+        }
+    }
+
+    private Map<String, Object> unableToLock(String function) {
+        errors.increment();
+        lockFailures.increment();
+        return error(function, "moodle_exception", "ex_unabletolock",
+            "Unable to obtain session lock");
+    }
+
+    /**
+     * Creates an error object. The web services report the exception,
+     * `login/token.php` reports errors like invalid logins.
+     */
+    private static Map<String, Object> error(String function,
+            String exception, String errorCode, String message) {
+        if (TOKEN_ENDPOINT.equals(function)) {
+            return tokenError(errorCode, message);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("exception", exception);
+        result.put("errorcode", errorCode);
+        result.put("message", message);
+        return result;
+    }
+
+    private static Map<String, Object> tokenError(String errorCode,
+            String message) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("error", message);
+        result.put("errorcode", errorCode);
+        result.put("stacktrace", null);
+        result.put("debuginfo", null);
+        result.put("reproductionlink", null);
+        return result;
+    }
+
+    private Map<String, Object> token(Map<String, String> params) {
+        var index = userIndex.get(params.getOrDefault("username", "")
+            .toLowerCase(Locale.ROOT));
+        if (index == null || !password.equals(params.get("password"))) {
+            return tokenError("invalidlogin",
+                "Invalid login, please try again");
+        }
+        var token = tokenPrefix + HexFormat.of().toHexDigits((long) index);
+        return Map.of("token", token, "privatetoken",
+            HexFormat.of().toHexDigits(index.longValue() * 31) + token);
+    }
+
+    private int userByToken(String token) {
+        if (token == null || token.length() != 32
+            || !token.startsWith(tokenPrefix)) {
+            return -1;
+        }
+        try {
+            long index = HexFormat.fromHexDigitsToLong(token, 16, 32);
+            return index < userCount ? (int) index : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    @SuppressWarnings("PMD.CognitiveComplexity")
+    private List<Map<String, Object>>
+            usersByField(Map<String, String> params) {
+        var field = params.getOrDefault("field", "");
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int i = 0;; i++) {
+            var value = params.get("values[" + i + "]");
+            if (value == null) {
+                break;
+            }
+            value = value.toLowerCase(Locale.ROOT);
+            Integer index = switch (field) {
+            case "id" -> {
+                try {
+                    int id = Integer.parseInt(value) - FIRST_ID;
+                    yield id >= 0 && id < userCount ? id : null;
+                } catch (NumberFormatException e) {
+                    yield null;
+                }
+            }
+            case "username" -> userIndex.get(value);
+            case "email" -> value.endsWith("@example.org")
+                ? userIndex.get(value.substring(0, value.indexOf('@')))
+                : null;
+            default -> null;
+            };
+            if (index != null) {
+                result.add(user(index));
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Object> user(int index) {
+        var username = username(index);
+        boolean incomplete = index % 1000 < incompleteProfiles * 1000;
+        var firstName = incomplete ? ""
+            : FIRST_NAMES[index % FIRST_NAMES.length];
+        var lastName = incomplete ? ""
+            : LAST_NAMES[index / FIRST_NAMES.length % LAST_NAMES.length];
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("id", FIRST_ID + index);
+        user.put("username", username);
+        user.put("firstname", firstName);
+        user.put("lastname", lastName);
+        user.put("fullname", (firstName + " " + lastName).trim());
+        user.put("email", username + "@example.org");
+        user.put("department", "");
+        user.put("firstaccess", 1_700_000_000L);
+        user.put("lastaccess", 1_720_000_000L);
+        user.put("auth", "manual");
+        user.put("suspended", false);
+        user.put("confirmed", true);
+        user.put("lang", "de");
+        user.put("theme", "");
+        user.put("timezone", "99");
+        user.put("mailformat", 1);
+        user.put("description", "");
+        user.put("descriptionformat", 1);
+        user.put("profileimageurlsmall",
+            "http://localhost/theme/image.php/boost/core/1/u/f2");
+        user.put("profileimageurl",
+            "http://localhost/theme/image.php/boost/core/1/u/f1");
+        user.put("preferences", List.of(
+            Map.of("name", "auth_forcepasswordchange", "value", "0"),
+            Map.of("name", "email_bounce_count", "value", "1")));
+        return user;
+    }
+
+    private Map<String, Object> siteInfo(int index) {
+        var user = user(index);
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("sitename", "Moodle Stand-In");
+        info.put("username", user.get("username"));
+        // Moodle's site info provides the names from the session,
+        // even if the user record has none.
+        info.put("firstname", FIRST_NAMES[index % FIRST_NAMES.length]);
+        info.put("lastname",
+            LAST_NAMES[index / FIRST_NAMES.length % LAST_NAMES.length]);
+        info.put("fullname", info.get("firstname") + " "
+            + info.get("lastname"));
+        info.put("lang", "de");
+        info.put("userid", user.get("id"));
+        info.put("siteurl", "http://localhost");
+        List<Map<String, Object>> functions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            functions.add(Map.of("name", "core_function_" + i,
+                "version", "2024042200"));
+        }
+        info.put("functions", functions);
+        info.put("release", "4.4 (Build: 20240422)");
+        info.put("version", "2024042200");
+        info.put("userissiteadmin", false);
+        info.put("theme", "boost");
+        return info;
+    }
+
+    /**
+     * Runs the stand-in on the port given as first argument (default
+     * 8090) with the number of users given as second argument.
+     *
+     * @param args the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws InterruptedException the interrupted exception
+     */
+    @SuppressWarnings("PMD.SystemPrintln")
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        var standIn = new MoodleStandIn();
+        if (args.length > 1) {
+            standIn.setUserCount(Integer.parseInt(args[1]));
+        }
+        standIn.start(args.length > 0 ? Integer.parseInt(args[0]) : 8090);
+        System.out.println("Moodle stand-in running at " + standIn.uri()
+            + ", users " + username(0) + " ... "
+            + username(standIn.userCount - 1) + ", password \""
+            + standIn.password + "\"");
+        Thread.currentThread().join();
+    }
+}
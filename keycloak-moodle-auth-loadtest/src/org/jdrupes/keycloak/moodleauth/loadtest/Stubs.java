@@ -0,0 +1,155 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.loadtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Creates implementations of (large) interfaces that handle only
+ * the methods of interest and provide neutral results for all
+ * others.
+ */
+/* default */ final class Stubs {
+
+    /** Returned by a {@link Handler} for methods that it doesn't handle. */
+    /* default */ static final Object UNHANDLED = new Object();
+
+    private static final Map<Class<?>, Object> NOOPS
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Handles the invocations of a stub's methods.
+     */
+    @FunctionalInterface
+    /* default */ interface Handler {
+
+        /**
+         * Handle the invocation.
+         *
+         * @param method the method
+         * @param args the arguments (never `null`)
+         * @return the result or {@link Stubs#UNHANDLED}
+         */
+        @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+        Object handle(Method method, Object[] args) throws Exception;
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * Creates a stub. Methods not handled by the handler return
+     * `false`, 0, an empty stream, the stub itself if the return
+     * type is the stub's type (builder pattern) or a no-op stub if
+     * the return type is another interface. Other methods return
+     * `null`.
+     *
+     * @param <T> the type
+     * @param type the type
+     * @param handler the handler
+     * @return the stub
+     */
+    @SuppressWarnings("unchecked")
+    /* default */ static <T> T create(Class<T> type, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            Object[] actual = args == null ? new Object[0] : args;
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                case "equals" -> proxy == actual[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                default -> type.getSimpleName() + " stub";
+                };
+            }
+            var result = handler.handle(method, actual);
+            if (result != UNHANDLED) {
+                return result;
+            }
+            if (method.isDefault()) {
+                try {
+                    return InvocationHandler.invokeDefault(proxy, method,
+                        args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            return neutral(type, proxy, method.getReturnType());
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(),
+            new Class<?>[] { type }, invocationHandler);
+    }
+
+    /**
+     * Returns a stub that handles no methods.
+     *
+     * @param <T> the type
+     * @param type the type
+     * @return the stub
+     */
+    /* default */ static <T> T noop(Class<T> type) {
+        return type.cast(NOOPS.computeIfAbsent(type,
+            t -> create(t, (method, args) -> UNHANDLED)));
+    }
+
+    @SuppressWarnings({ "PMD.CognitiveComplexity",
+        "PMD.AvoidLiteralsInIfCondition" })
+    private static Object neutral(Class<?> type, Object proxy,
+            Class<?> returnType) {
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == void.class || !returnType.isPrimitive()) {
+            if (returnType.isAssignableFrom(type)
+                && returnType != Object.class) {
+                return proxy;
+            }
+            if (returnType == Stream.class) {
+                return Stream.empty();
+            }
+            if (returnType.isInterface()) {
+                return noop(returnType);
+            }
+            return null;
+        }
+        if (returnType == char.class) {
+            return (char) 0;
+        }
+        if (returnType == long.class) {
+            return 0L;
+        }
+        if (returnType == double.class) {
+            return 0d;
+        }
+        if (returnType == float.class) {
+            return 0f;
+        }
+        if (returnType == short.class) {
+            return (short) 0;
+        }
+        if (returnType == byte.class) {
+            return (byte) 0;
+        }
+        return 0;
+    }
+}
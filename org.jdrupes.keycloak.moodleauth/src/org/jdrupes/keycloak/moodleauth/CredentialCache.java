@@ -0,0 +1,198 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Optional;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.jdrupes.keycloak.moodleauth.cache.BoundedCache;
+import org.jdrupes.keycloak.moodleauth.cache.SharedStore;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleMetrics;
+import org.jdrupes.keycloak.moodleauth.moodle.service.Password;
+
+/**
+ * Remembers recently verified credentials, allowing a repeated login
+ * to be completed without asking Moodle. The cache never holds the
+ * password. It stores a verifier, i.e. a salted PBKDF2 hash of the
+ * password, which can only be used to check if a given password
+ * matches.
+ *
+ * If a {@link SharedStore} is set, the verifiers are kept in the
+ * shared store instead of the local cache, making them available
+ * to all nodes of a cluster.
+ */
+public class CredentialCache {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = 10_000;
+    private static final int KEY_LENGTH = 256;
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final BoundedCache<String, Verifier> verifiers;
+    private SharedStore shared;
+
+    /**
+     * The salt and the hash of a password.
+     */
+    @SuppressWarnings("PMD.ArrayIsStoredDirectly")
+    private record Verifier(byte[] salt, byte[] hash) {
+
+        /**
+         * Encodes the verifier as salt followed by hash.
+         *
+         * @return the bytes
+         */
+        private byte[] encode() {
+            var result = Arrays.copyOf(salt, salt.length + hash.length);
+            System.arraycopy(hash, 0, result, salt.length, hash.length);
+            return result;
+        }
+
+        /**
+         * Decodes an encoded verifier.
+         *
+         * @param encoded the encoded verifier
+         * @return the verifier
+         */
+        @SuppressWarnings("PMD.UseVarargs")
+        private static Verifier decode(byte[] encoded) {
+            return new Verifier(Arrays.copyOf(encoded, SALT_LENGTH),
+                Arrays.copyOfRange(encoded, SALT_LENGTH, encoded.length));
+        }
+    }
+
+    /**
+     * Instantiates a new credential cache.
+     *
+     * @param maxSize the maximum number of entries
+     */
+    public CredentialCache(int maxSize) {
+        verifiers = new BoundedCache<>("credentials", maxSize);
+        MoodleMetrics.bind(verifiers);
+    }
+
+    /**
+     * Sets the maximum number of entries.
+     *
+     * @param maxSize the max size
+     * @return the credential cache
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public CredentialCache setMaxSize(int maxSize) {
+        verifiers.setMaxSize(maxSize);
+        return this;
+    }
+
+    /**
+     * Sets the shared store. If set, the local cache is no longer
+     * used for the entries, but its hits and misses are still
+     * counted.
+     *
+     * @param shared the shared store or `null`
+     * @return the credential cache
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public CredentialCache setSharedStore(SharedStore shared) {
+        this.shared = shared;
+        verifiers.clear();
+        return this;
+    }
+
+    /**
+     * Checks if the credentials have been verified recently.
+     *
+     * @param site the site
+     * @param username the username
+     * @param password the password
+     * @return true, if the credentials are known to be valid
+     */
+    public boolean verify(String site, String username, Password password) {
+        return lookup(key(site, username))
+            .map(v -> MessageDigest.isEqual(v.hash(), hash(password, v.salt())))
+            .orElse(false);
+    }
+
+    /**
+     * Records that the credentials have been verified.
+     *
+     * @param site the site
+     * @param username the username
+     * @param password the password
+     * @param ttl the time to keep the information
+     */
+    public void store(String site, String username, Password password,
+            Duration ttl) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        var verifier = new Verifier(salt, hash(password, salt));
+        if (shared == null) {
+            verifiers.put(key(site, username), verifier, ttl);
+        } else {
+            shared.put(key(site, username), verifier.encode(), ttl);
+        }
+    }
+
+    /**
+     * Removes any information about the user's credentials.
+     *
+     * @param site the site
+     * @param username the username
+     */
+    public void invalidate(String site, String username) {
+        if (shared == null) {
+            verifiers.remove(key(site, username));
+        } else {
+            shared.remove(key(site, username));
+        }
+    }
+
+    private Optional<Verifier> lookup(String key) {
+        if (shared == null) {
+            return verifiers.get(key);
+        }
+        var result = shared.get(key).map(Verifier::decode);
+        verifiers.recordLookup(result.isPresent());
+        return result;
+    }
+
+    private static String key(String site, String username) {
+        return site + "|" + username.toLowerCase(Locale.ROOT);
+    }
+
+    @SuppressWarnings("PMD.UseVarargs")
+    private static byte[] hash(Password password, byte[] salt) {
+        var spec = new PBEKeySpec(password.password(), salt, ITERATIONS,
+            KEY_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM)
+                .generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
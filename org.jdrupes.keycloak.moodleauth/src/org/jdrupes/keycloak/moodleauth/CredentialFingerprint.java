@@ -0,0 +1,89 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.jdrupes.keycloak.moodleauth.moodle.service.Password;
+
+/**
+ * Computes fingerprints of credentials, i.e. keyed hashes (HMAC-SHA256)
+ * of site, username and password. The key is generated randomly when
+ * the class is loaded and never leaves the JVM. Fingerprints can
+ * therefore be used to recognize credentials within the JVM, but 
+ * don't allow the password to be recovered by a dictionary attack
+ * if disclosed.
+ */
+public final class CredentialFingerprint {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecretKeySpec KEY;
+
+    static {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        KEY = new SecretKeySpec(key, ALGORITHM);
+    }
+
+    private CredentialFingerprint() {
+    }
+
+    /**
+     * Computes the fingerprint of the credentials.
+     *
+     * @param site the site
+     * @param username the username
+     * @param password the password
+     * @return the fingerprint
+     */
+    public static String of(String site, String username,
+            Password password) {
+        Mac mac;
+        try {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(KEY);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mac.update(site.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(username.toLowerCase(Locale.ROOT)
+            .getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        ByteBuffer encoded = StandardCharsets.UTF_8
+            .encode(CharBuffer.wrap(password.password()));
+        try {
+            mac.update(encoded.duplicate());
+        } finally {
+            if (encoded.hasArray()) {
+                Arrays.fill(encoded.array(), (byte) 0);
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(mac.doFinal());
+    }
+}
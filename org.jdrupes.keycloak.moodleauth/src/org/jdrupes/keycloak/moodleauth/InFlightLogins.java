@@ -0,0 +1,115 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.jdrupes.keycloak.moodleauth.moodle.service.MoodleAuthFailedException;
+import org.jdrupes.keycloak.moodleauth.moodle.service.MoodleClient;
+
+/**
+ * Coalesces concurrent verifications of the same credentials. If a
+ * user submits the login form several times (double click, several
+ * tabs), only the first submission is verified with Moodle. The
+ * others wait for and share its result. Verifications are keyed by
+ * the {@link CredentialFingerprint}, so a submission with a different
+ * password never shares a result.
+ */
+public class InFlightLogins {
+
+    private final Map<String, CompletableFuture<MoodleClient>> inFlight
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The verification to be made.
+     */
+    @FunctionalInterface
+    public interface Verification {
+
+        /**
+         * Connect to Moodle.
+         *
+         * @return the moodle client
+         * @throws IOException Signals that an I/O exception has occurred.
+         * @throws MoodleAuthFailedException the moodle auth failed exception
+         */
+        MoodleClient connect() throws IOException, MoodleAuthFailedException;
+    }
+
+    /**
+     * The result of a verification.
+     *
+     * @param client the client
+     * @param owner whether the verification has been made by this
+     * invocation; only the owner may close the client 
+     */
+    public record Result(MoodleClient client, boolean owner) {
+    }
+
+    /**
+     * Makes the verification or waits for the result of a concurrent
+     * verification with the same key.
+     *
+     * @param key the key
+     * @param verification the verification
+     * @return the result
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws MoodleAuthFailedException the moodle auth failed exception
+     */
+    @SuppressWarnings({ "PMD.AvoidCatchingGenericException",
+        "PMD.AvoidRethrowingException", "PMD.PreserveStackTrace" })
+    public Result verify(String key, Verification verification)
+            throws IOException, MoodleAuthFailedException {
+        var own = new CompletableFuture<MoodleClient>();
+        var existing = inFlight.putIfAbsent(key, own);
+        if (existing != null) {
+            try {
+                return new Result(existing.get(), false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioe) {
+                    throw ioe;
+                }
+                if (e.getCause() instanceof MoodleAuthFailedException mae) {
+                    throw mae;
+                }
+                if (e.getCause() instanceof RuntimeException rte) {
+                    throw rte;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        try {
+            var client = verification.connect();
+            own.complete(client);
+            return new Result(client, true);
+        } catch (IOException | MoodleAuthFailedException
+                | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleTracing;
+
+/**
+ * Records the decisions made and the phases passed during a login,
+ * both as span (see {@link MoodleTracing}) and as
+ * {@link MoodleLoginEvent}.
+ */
+/* default */ final class LoginRecorder implements AutoCloseable {
+
+    /**
+     * The phases of a login.
+     */
+    /* default */ enum Phase {
+        CONFIG("moodle.config"), VERIFY("moodle.verify"),
+        USER("keycloak.user"), UPDATE("moodle.update_user");
+
+        private final String spanName;
+
+        Phase(String spanName) {
+            this.spanName = spanName;
+        }
+    }
+
+    private final MoodleLoginEvent event = new MoodleLoginEvent();
+    private final MoodleTracing.Span span;
+
+    /**
+     * Starts recording a login.
+     */
+    /* default */ LoginRecorder() {
+        event.begin();
+        span = MoodleTracing.start("moodle.login");
+    }
+
+    /**
+     * Records the site.
+     *
+     * @param site the site
+     * @return the login recorder
+     */
+    /* default */ LoginRecorder site(String site) {
+        span.attribute("moodle.site", site);
+        event.site = site;
+        return this;
+    }
+
+    /**
+     * Records the result of the lookup in the credential cache.
+     *
+     * @param result the result
+     * @return the login recorder
+     */
+    /* default */ LoginRecorder credentialCache(String result) {
+        span.attribute("moodle.credential_cache", result);
+        event.credentialCache = result;
+        return this;
+    }
+
+    /**
+     * Records whether the verification was shared with a
+     * concurrent login.
+     *
+     * @param shared whether shared
+     * @return the login recorder
+     */
+    /* default */ LoginRecorder shared(boolean shared) {
+        span.attribute("moodle.verify.shared", Boolean.toString(shared));
+        event.shared = shared;
+        return this;
+    }
+
+    /**
+     * Records the outcome.
+     *
+     * @param outcome the outcome
+     * @return the login recorder
+     */
+    /* default */ LoginRecorder outcome(String outcome) {
+        span.attribute("moodle.login.outcome", outcome);
+        event.outcome = outcome;
+        return this;
+    }
+
+    /**
+     * Records the failure.
+     *
+     * @param cause the cause
+     * @return the login recorder
+     */
+    /* default */ LoginRecorder failed(Throwable cause) {
+        span.failed(cause);
+        return this;
+    }
+
+    /**
+     * Starts a phase. The phase ends when the returned
+     * {@link Timing} is closed.
+     *
+     * @param phase the phase
+     * @return the timing
+     */
+    /* default */ Timing start(Phase phase) {
+        return new Timing(phase);
+    }
+
+    /**
+     * Ends the recording.
+     */
+    @Override
+    public void close() {
+        span.close();
+        event.commit();
+    }
+
+    /**
+     * The timing of a phase.
+     */
+    /* default */ final class Timing implements AutoCloseable {
+        private final Phase phase;
+        private final MoodleTracing.Span phaseSpan;
+        private final long started = System.nanoTime();
+
+        private Timing(Phase phase) {
+            this.phase = phase;
+            phaseSpan = MoodleTracing.start(phase.spanName);
+        }
+
+        @Override
+        public void close() {
+            var duration = System.nanoTime() - started;
+            phaseSpan.close();
+            switch (phase) {
+            case CONFIG -> event.configDuration = duration;
+            case VERIFY -> event.verifyDuration = duration;
+            case USER -> event.userDuration = duration;
+            case UPDATE -> event.updateDuration = duration;
+            }
+        }
+    }
+}
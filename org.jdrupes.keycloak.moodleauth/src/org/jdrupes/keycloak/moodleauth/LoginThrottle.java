@@ -0,0 +1,122 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.time.Duration;
+import java.util.Locale;
+import org.jdrupes.keycloak.moodleauth.cache.BoundedCache;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleMetrics;
+
+/**
+ * Limits the rate of login attempts per username and per client
+ * address using token buckets. Each bucket holds up to "rate" tokens
+ * and is refilled with "rate" tokens per minute. An attempt takes a
+ * token from the bucket for the username and from the bucket for the
+ * client address and is refused if either is empty.
+ *
+ * The buckets are kept in {@link BoundedCache}s, so the memory used
+ * is bounded. A bucket that has been unused for a minute is full
+ * again and therefore expires. If the caches overflow (many different
+ * usernames or addresses), the least recently used buckets are
+ * evicted. This may let an attacker with a very large number of
+ * addresses get additional attempts, but never exhausts the heap.
+ *
+ * The address is the one reported by Keycloak. Unless Keycloak
+ * evaluates the proxy headers, this is the address of a load
+ * balancer or reverse proxy, i.e. the same for all clients.
+ */
+public class LoginThrottle {
+
+    private static final Duration REFILL_PERIOD = Duration.ofMinutes(1);
+
+    private final BoundedCache<String, Bucket> byUser;
+    private final BoundedCache<String, Bucket> byAddress;
+
+    /**
+     * A token bucket.
+     */
+    private static final class Bucket {
+        private double tokens;
+        private long updated;
+
+        private Bucket(int capacity, long now) {
+            tokens = capacity;
+            updated = now;
+        }
+
+        private boolean tryTake(int capacity, long now) {
+            tokens = Math.min(capacity, tokens + (double) capacity
+                * (now - updated) / REFILL_PERIOD.toNanos());
+            updated = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * Instantiates a new login throttle.
+     *
+     * @param maxSize the maximum number of buckets kept for usernames
+     * and for addresses
+     */
+    public LoginThrottle(int maxSize) {
+        byUser = new BoundedCache<>("throttle-users", maxSize);
+        MoodleMetrics.bind(byUser);
+        byAddress = new BoundedCache<>("throttle-addresses", maxSize);
+        MoodleMetrics.bind(byAddress);
+    }
+
+    /**
+     * Checks if a login attempt is allowed and records it.
+     *
+     * @param site the site
+     * @param username the username
+     * @param address the client's address (may be `null`)
+     * @param userRate the allowed attempts per minute for a username,
+     * 0 disables the limit
+     * @param addressRate the allowed attempts per minute from an
+     * address, 0 disables the limit
+     * @return true, if the attempt is allowed
+     */
+    public boolean tryAcquire(String site, String username, String address,
+            int userRate, int addressRate) {
+        long now = System.nanoTime();
+        boolean allowed = userRate <= 0 || take(byUser,
+            site + "|" + username.toLowerCase(Locale.ROOT), userRate, now);
+        // Always count the attempt for the address
+        return (addressRate <= 0 || address == null
+            || take(byAddress, address, addressRate, now)) && allowed;
+    }
+
+    @SuppressWarnings("PMD.AvoidSynchronizedStatement")
+    private static boolean take(BoundedCache<String, Bucket> buckets,
+            String key, int rate, long now) {
+        synchronized (buckets) {
+            var bucket = buckets.get(key)
+                .orElseGet(() -> new Bucket(rate, now));
+            var result = bucket.tryTake(rate, now);
+            // (Re-)inserting extends the time to live.
+            buckets.put(key, bucket, REFILL_PERIOD);
+            return result;
+        }
+    }
+}
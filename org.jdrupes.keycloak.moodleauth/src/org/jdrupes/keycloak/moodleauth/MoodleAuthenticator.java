@@ -20,11 +20,16 @@ package org.jdrupes.keycloak.moodleauth;
 
 import jakarta.ws.rs.core.MultivaluedMap;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
+import org.jdrupes.keycloak.moodleauth.cache.BoundedCache;
+import org.jdrupes.keycloak.moodleauth.cache.SharedStore;
+import org.jdrupes.keycloak.moodleauth.moodle.BackoffRetryPolicy;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleMetrics;
 import org.jdrupes.keycloak.moodleauth.moodle.MoodleServiceProvider;
-import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleSite;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleSites;
 import org.jdrupes.keycloak.moodleauth.moodle.service.MoodleAuthFailedException;
-import org.jdrupes.keycloak.moodleauth.moodle.service.MoodleClient;
 import org.jdrupes.keycloak.moodleauth.moodle.service.Password;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
@@ -32,8 +37,10 @@ import org.keycloak.authentication.Authenticator;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.ServicesLogger;
 
 /**
@@ -43,6 +50,39 @@ public class MoodleAuthenticator implements Authenticator {
 
     private static ServicesLogger log = ServicesLogger.LOGGER;
 
+    private final MoodleSites sites;
+    private final CredentialCache credentialCache = new CredentialCache(10_000);
+    private final InFlightLogins inFlightLogins = new InFlightLogins();
+    private final LoginThrottle throttle = new LoginThrottle(10_000);
+    private final BoundedCache<String, Boolean> failedLogins
+        = new BoundedCache<>("failed-logins", 10_000);
+    private final Object[] creationLocks = new Object[64];
+
+    /**
+     * Instantiates a new moodle authenticator.
+     *
+     * @param sites the registry with the shared site resources
+     */
+    public MoodleAuthenticator(MoodleSites sites) {
+        this.sites = sites;
+        for (int i = 0; i < creationLocks.length; i++) {
+            creationLocks[i] = new Object();
+        }
+        MoodleMetrics.bind(failedLogins);
+    }
+
+    /**
+     * Sets the shared store for the credential cache.
+     *
+     * @param store the store
+     * @return the moodle authenticator
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleAuthenticator setCredentialStore(SharedStore store) {
+        credentialCache.setSharedStore(store);
+        return this;
+    }
+
     /**
      * User does not have to been identified, because this is
      * a combined login/auto registration form. So return false;
@@ -116,73 +156,242 @@ public class MoodleAuthenticator implements Authenticator {
             context.cancelLogin();
             return;
         }
+        try (var recorder = new LoginRecorder()) {
+            login(context, formData, recorder);
+        }
+    }
 
+    /**
+     * Verifies the credentials from the form data. The decisions
+     * made and the phases passed are recorded with the recorder.
+     *
+     * @param context the context
+     * @param formData the form data
+     * @param recorder the recorder
+     */
+    @SuppressWarnings({ "PMD.CognitiveComplexity", "PMD.NPathComplexity" })
+    private void login(AuthenticationFlowContext context,
+            MultivaluedMap<String, String> formData, LoginRecorder recorder) {
         // Get Moodle Service
-        String moodleUrl = Optional.ofNullable(context.getAuthenticatorConfig())
-            .map(AuthenticatorConfigModel::getConfig)
-            .map(m -> m.get(MoodleAuthenticatorFactory.MOODLE_URL)).orElse("");
-        if (moodleUrl.isEmpty()) {
-            var challenge = formsProvider(context).setError("missingMoodleUrl")
-                .createForm("moodle-login.ftl");
+        String moodleUrl;
+        MoodleSite site;
+        MoodleServiceProvider moodleServiceProvider;
+        try (var timing = recorder.start(LoginRecorder.Phase.CONFIG)) {
+            moodleUrl = Optional.ofNullable(context.getAuthenticatorConfig())
+                .map(AuthenticatorConfigModel::getConfig)
+                .map(m -> m.get(MoodleAuthenticatorFactory.MOODLE_URL))
+                .orElse("");
+            if (moodleUrl.isEmpty()) {
+                var challenge = formsProvider(context)
+                    .setError("missingMoodleUrl")
+                    .createForm("moodle-login.ftl");
+                context.failureChallenge(
+                    AuthenticationFlowError.IDENTITY_PROVIDER_ERROR,
+                    challenge);
+                log.error("Moodle URL not configured.");
+                recorder.outcome("misconfigured");
+                return;
+            }
+            site = sites.site(moodleUrl);
+            recorder.site(site.name());
+            if (site.circuitBreaker().isOpen()) {
+                // Don't even try, Moodle is known to be unavailable.
+                recorder.outcome("circuit_open");
+                temporaryFailure(context);
+                return;
+            }
+            site.retryBudget().setPercent((int) configValue(context,
+                MoodleAuthenticatorFactory.RETRY_BUDGET, 20));
+            moodleServiceProvider = serviceProvider(context);
+        }
+        var username = formData.getFirst("username");
+        var password
+            = new Password(formData.getFirst("password").toCharArray());
+        var fingerprint
+            = CredentialFingerprint.of(site.name(), username, password);
+
+        // Check for recently failed credentials.
+        var failedTtl = Duration.ofSeconds(configValue(context,
+            MoodleAuthenticatorFactory.FAILED_LOGIN_CACHE_TTL, 60));
+        if (failedTtl.isPositive()
+            && failedLogins.get(fingerprint).isPresent()) {
+            recorder.outcome("failed_cached");
+            invalidCredentials(context);
+            return;
+        }
+
+        // Limit the attempts before doing any expensive work, i.e.
+        // deriving the key for the credential cache or asking Moodle.
+        if (!throttle.tryAcquire(site.name(), username,
+            context.getConnection().getRemoteAddr(),
+            (int) configValue(context,
+                MoodleAuthenticatorFactory.USER_LOGIN_RATE, 10),
+            (int) configValue(context,
+                MoodleAuthenticatorFactory.ADDRESS_LOGIN_RATE, 0))) {
+            var challenge = formsProvider(context)
+                .setError("tooManyMoodleLogins").createForm("moodle-login.ftl");
             context.failureChallenge(
-                AuthenticationFlowError.IDENTITY_PROVIDER_ERROR, challenge);
-            log.error("Moodle URL not configured.");
+                AuthenticationFlowError.USER_TEMPORARILY_DISABLED, challenge);
+            recorder.outcome("throttled");
             return;
         }
-        var moodleServiceProvider = new MoodleServiceProvider();
-        var username = formData.getFirst("username");
-        try (var moodleClient = moodleServiceProvider.connect(moodleUrl,
-            username,
-            new Password(formData.getFirst("password").toCharArray()))) {
+
+        // Check for recently verified credentials.
+        var cacheTtl = Duration.ofSeconds(configValue(context,
+            MoodleAuthenticatorFactory.CREDENTIAL_CACHE_TTL, 0));
+        if (cacheTtl.isPositive()) {
+            credentialCache.setMaxSize((int) configValue(context,
+                MoodleAuthenticatorFactory.CREDENTIAL_CACHE_SIZE, 10_000));
+            if (credentialCache.verify(site.name(), username, password)) {
+                var user = context.getSession().users()
+                    .getUserByUsername(context.getRealm(), username);
+                if (user != null && user.isEnabled()) {
+                    recorder.credentialCache("hit").outcome("success");
+                    context.setUser(user);
+                    context.success();
+                    return;
+                }
+            }
+            recorder.credentialCache("miss");
+        } else {
+            recorder.credentialCache("disabled");
+        }
+
+        // Verify with Moodle, sharing the result with concurrent
+        // submissions of the same credentials.
+        InFlightLogins.Result verified = null;
+        try {
+            try (var timing = recorder.start(LoginRecorder.Phase.VERIFY)) {
+                verified = inFlightLogins.verify(fingerprint,
+                    () -> moodleServiceProvider.connect(moodleUrl, username,
+                        password));
+            }
+            recorder.shared(!verified.owner());
+            var moodleClient = verified.client();
+            if (cacheTtl.isPositive()) {
+                credentialCache.store(site.name(), username, password,
+                    cacheTtl);
+            }
 
             // Create non-existant user and update.
-            var userProvider = context.getSession().users();
-            var user = Optional.ofNullable(userProvider
-                .getUserByUsername(context.getRealm(), username))
-                .orElseGet(() -> {
-                    var data
-                        = userProvider.addUser(context.getRealm(), username);
-                    data.setEnabled(true);
-                    return data;
-                });
-            updateUser(context, user, moodleClient);
+            UserModel user;
+            try (var timing = recorder.start(LoginRecorder.Phase.USER)) {
+                user = findOrCreateUser(context, username);
+            }
+            try (var timing = recorder.start(LoginRecorder.Phase.UPDATE)) {
+                ProfileUpdater.update(user, moodleClient.moodleUser(),
+                    moodleClient::siteInfo);
+            }
+            recorder.outcome("success");
             context.setUser(user);
             context.success();
         } catch (IOException e) {
-            var challenge
-                = formsProvider(context).setError("temoraryMoodleFailure")
-                    .createForm("moodle-login.ftl");
-            context.failureChallenge(
-                AuthenticationFlowError.IDENTITY_PROVIDER_ERROR, challenge);
+            recorder.outcome("temporary_failure").failed(e);
+            temporaryFailure(context);
             return;
         } catch (MoodleAuthFailedException e) {
-            var challenge = formsProvider(context)
-                .setError("invalidUserMessage").createForm("moodle-login.ftl");
-            context.failureChallenge(
-                AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
+            recorder.outcome("invalid_credentials");
+            credentialCache.invalidate(site.name(), username);
+            if (failedTtl.isPositive()) {
+                failedLogins.put(fingerprint, Boolean.TRUE, failedTtl);
+            }
+            invalidCredentials(context);
             return;
+        } finally {
+            if (verified != null && verified.owner()) {
+                verified.client().close();
+            }
         }
     }
 
-    private UserModel updateUser(AuthenticationFlowContext context,
-            UserModel kcUser, MoodleClient moodleClient) {
-        MoodleUser moodleUser = moodleClient.moodleUser();
-        kcUser.setEmail(moodleUser.getEmail());
-        kcUser.setEmailVerified(true);
-        var siteInfo = moodleClient.siteInfo();
-        if (moodleUser.getFirstname() != null
-            && !moodleUser.getFirstname().isBlank()) {
-            kcUser.setFirstName(moodleUser.getFirstname());
-        } else {
-            kcUser.setFirstName(siteInfo.getFirstname());
+    private MoodleServiceProvider
+            serviceProvider(AuthenticationFlowContext context) {
+        return new MoodleServiceProvider(sites)
+            .setRetryPolicy(new BackoffRetryPolicy(
+                (int) configValue(context,
+                    MoodleAuthenticatorFactory.RETRY_MAX_RETRIES, 3),
+                Duration.ofMillis(configValue(context,
+                    MoodleAuthenticatorFactory.RETRY_BASE_DELAY, 200)),
+                Duration.ofMillis(configValue(context,
+                    MoodleAuthenticatorFactory.RETRY_MAX_DELAY, 2000))))
+            .setTimeout(Duration.ofSeconds(configValue(context,
+                MoodleAuthenticatorFactory.LOGIN_TIMEOUT, 15)))
+            .setProfileTtl(Duration.ofSeconds(configValue(context,
+                MoodleAuthenticatorFactory.PROFILE_CACHE_TTL, 900)));
+    }
+
+    /**
+     * Returns the user with the given name, creating it if it doesn't
+     * exist yet. Creation is serialized and done in a transaction of
+     * its own. Concurrent logins of the same user therefore find the
+     * user created by the first login instead of failing with a
+     * duplicate user error.
+     *
+     * @param context the context
+     * @param username the username
+     * @return the user model
+     */
+    @SuppressWarnings("PMD.EmptyCatchBlock")
+    private UserModel findOrCreateUser(AuthenticationFlowContext context,
+            String username) {
+        var realm = context.getRealm();
+        var user = context.getSession().users().getUserByUsername(realm,
+            username);
+        if (user != null) {
+            return user;
         }
-        if (moodleUser.getLastname() != null
-            && !moodleUser.getLastname().isBlank()) {
-            kcUser.setLastName(moodleUser.getLastname());
-        } else {
-            kcUser.setLastName(siteInfo.getLastname());
+        var realmId = realm.getId();
+        synchronized (creationLocks[Math.floorMod(
+            (realmId + username).hashCode(), creationLocks.length)]) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(
+                    context.getSession().getKeycloakSessionFactory(),
+                    session -> {
+                        var jobRealm = session.realms().getRealm(realmId);
+                        if (session.users().getUserByUsername(jobRealm,
+                            username) == null) {
+                            session.users().addUser(jobRealm, username)
+                                .setEnabled(true);
+                        }
+                    });
+            } catch (ModelDuplicateException e) {
+                // Created concurrently by another node.
+            }
+        }
+        return context.getSession().users().getUserByUsername(realm,
+            username);
+    }
+
+    private void invalidCredentials(AuthenticationFlowContext context) {
+        var challenge = formsProvider(context)
+            .setError("invalidUserMessage").createForm("moodle-login.ftl");
+        context.failureChallenge(
+            AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
+    }
+
+    private void temporaryFailure(AuthenticationFlowContext context) {
+        var challenge
+            = formsProvider(context).setError("temoraryMoodleFailure")
+                .createForm("moodle-login.ftl");
+        context.failureChallenge(
+            AuthenticationFlowError.IDENTITY_PROVIDER_ERROR, challenge);
+    }
+
+    private static long configValue(AuthenticationFlowContext context,
+            String key, long defaultValue) {
+        String value = Optional.ofNullable(context.getAuthenticatorConfig())
+            .map(AuthenticatorConfigModel::getConfig).map(m -> m.get(key))
+            .orElse("");
+        if (value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warnf("Invalid value \"%s\" for %s, using %d.", value, key,
+                defaultValue);
+            return defaultValue;
         }
-        return kcUser;
     }
 
     private LoginFormsProvider
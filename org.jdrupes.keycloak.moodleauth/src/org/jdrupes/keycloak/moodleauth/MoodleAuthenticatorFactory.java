@@ -18,38 +18,127 @@
 
 package org.jdrupes.keycloak.moodleauth;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.Locale;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jdrupes.keycloak.moodleauth.cache.InfinispanStore;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleServiceProvider;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleSites;
 import org.keycloak.Config.Scope;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.models.AuthenticationExecutionModel.Requirement;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.ServicesLogger;
 
 public class MoodleAuthenticatorFactory implements AuthenticatorFactory {
 
     /* default */ static final String MOODLE_URL = "moodleUrl";
+    /* default */ static final String RETRY_MAX_RETRIES = "retryMaxRetries";
+    /* default */ static final String RETRY_BASE_DELAY = "retryBaseDelay";
+    /* default */ static final String RETRY_MAX_DELAY = "retryMaxDelay";
+    /* default */ static final String RETRY_BUDGET = "retryBudgetPercent";
+    /* default */ static final String LOGIN_TIMEOUT = "loginTimeout";
+    /* default */ static final String PROFILE_CACHE_TTL = "profileCacheTtl";
+    /* default */ static final String CREDENTIAL_CACHE_TTL
+        = "credentialCacheTtl";
+    /* default */ static final String CREDENTIAL_CACHE_SIZE
+        = "credentialCacheSize";
+    /* default */ static final String FAILED_LOGIN_CACHE_TTL
+        = "failedLoginCacheTtl";
+    /* default */ static final String USER_LOGIN_RATE = "userLoginRate";
+    /* default */ static final String ADDRESS_LOGIN_RATE = "addressLoginRate";
+    private static final String CLUSTER_CACHES = "clusterCaches";
+    private static final String CLUSTER_CACHE_MODE = "clusterCacheMode";
+    private static final String CLUSTER_CACHE_SIZE = "clusterCacheSize";
+    private static final Duration CLUSTER_CACHE_MAX_LIFESPAN
+        = Duration.ofDays(1);
     private static final String TYPE = "delegator";
     private static final String PROVIDER_ID = "org.jdrupes.keycloak.moodleauth";
-    private static final MoodleAuthenticator SINGLETON
-        = new MoodleAuthenticator();
+    private final MoodleSites sites = MoodleSites.acquireShared();
+    private final MoodleAuthenticator authenticator
+        = new MoodleAuthenticator(sites);
+    private boolean clusterCaches;
+    private InfinispanStore.Mode clusterCacheMode;
+    private long clusterCacheSize;
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return SINGLETON;
+        return authenticator;
     }
 
+    /**
+     * Reads the provider's configuration. The shared caches are
+     * configured with `clusterCaches` (default `true`),
+     * `clusterCacheMode` (`replicated` or `distributed`) and
+     * `clusterCacheSize` (maximum entries per node).
+     *
+     * Also prepares the decoding of Moodle's responses, so that the
+     * first login after a deployment is not delayed by it.
+     *
+     * @param config the config
+     */
     @Override
     public void init(Scope config) {
+        clusterCaches = config.getBoolean(CLUSTER_CACHES, true);
+        var mode = config.get(CLUSTER_CACHE_MODE, "replicated");
+        try {
+            clusterCacheMode = InfinispanStore.Mode
+                .valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            ServicesLogger.LOGGER.warnf("Invalid value \"%s\" for %s,"
+                + " using replicated.", mode, CLUSTER_CACHE_MODE);
+            clusterCacheMode = InfinispanStore.Mode.REPLICATED;
+        }
+        clusterCacheSize = config.getLong(CLUSTER_CACHE_SIZE, 10_000L);
+        MoodleServiceProvider.warmUp();
     }
 
+    /**
+     * Defines the caches for verified credentials and profiles in
+     * Keycloak's Infinispan, so that they are shared by all nodes of
+     * the cluster.
+     *
+     * @param factory the factory
+     */
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        if (!clusterCaches) {
+            return;
+        }
+        EmbeddedCacheManager manager = KeycloakModelUtils
+            .runJobInTransactionWithResult(factory, session -> {
+                var provider
+                    = session.getProvider(InfinispanConnectionProvider.class);
+                return provider == null ? null
+                    : provider.getCache(InfinispanConnectionProvider
+                        .REALM_CACHE_NAME).getCacheManager();
+            });
+        if (manager == null) {
+            ServicesLogger.LOGGER.warn("Infinispan not available,"
+                + " using local caches for Moodle authentication.");
+            return;
+        }
+        authenticator.setCredentialStore(InfinispanStore.define(manager,
+            "moodle-credentials", clusterCacheMode, clusterCacheSize,
+            CLUSTER_CACHE_MAX_LIFESPAN));
+        sites.setProfileStore(InfinispanStore.define(manager,
+            "moodle-profiles", clusterCacheMode, clusterCacheSize,
+            CLUSTER_CACHE_MAX_LIFESPAN));
     }
 
+    /**
+     * Releases the shared site registry. The HTTP clients of the
+     * sites are closed when no other provider uses the registry.
+     */
     @Override
     public void close() {
+        MoodleSites.releaseShared();
     }
 
     @Override
@@ -97,7 +186,63 @@ public class MoodleAuthenticatorFactory implements AuthenticatorFactory {
     public List<ProviderConfigProperty> getConfigProperties() {
         return List.of(new ProviderConfigProperty(MOODLE_URL, "Moodle URL",
             "The URL of the Moodle instance",
-            ProviderConfigProperty.STRING_TYPE, ""));
+            ProviderConfigProperty.STRING_TYPE, ""),
+            new ProviderConfigProperty(RETRY_MAX_RETRIES, "Maximum retries",
+                "The maximum number of retries of a failed request to Moodle",
+                ProviderConfigProperty.STRING_TYPE, "3"),
+            new ProviderConfigProperty(RETRY_BASE_DELAY, "Retry delay (ms)",
+                "The upper bound for the (random) delay before the first"
+                    + " retry, doubled for each subsequent retry",
+                ProviderConfigProperty.STRING_TYPE, "200"),
+            new ProviderConfigProperty(RETRY_MAX_DELAY,
+                "Maximum retry delay (ms)",
+                "The maximum upper bound for the delay before a retry",
+                ProviderConfigProperty.STRING_TYPE, "2000"),
+            new ProviderConfigProperty(RETRY_BUDGET, "Retry budget (%)",
+                "The maximum percentage of requests to a Moodle instance"
+                    + " that may be retried",
+                ProviderConfigProperty.STRING_TYPE, "20"),
+            new ProviderConfigProperty(LOGIN_TIMEOUT, "Login timeout (s)",
+                "The maximum time that the verification of a login with"
+                    + " Moodle may take, including all retries",
+                ProviderConfigProperty.STRING_TYPE, "15"),
+            new ProviderConfigProperty(PROFILE_CACHE_TTL,
+                "Profile cache TTL (s)",
+                "How long the user information obtained from Moodle is"
+                    + " cached. Cached information is refreshed in the"
+                    + " background when used. 0 disables the cache",
+                ProviderConfigProperty.STRING_TYPE, "900"),
+            new ProviderConfigProperty(CREDENTIAL_CACHE_TTL,
+                "Credential cache TTL (s)",
+                "How long successfully verified credentials are remembered."
+                    + " A repeated login within this time does not access"
+                    + " Moodle. Only a salted hash of the password is kept."
+                    + " 0 disables the cache",
+                ProviderConfigProperty.STRING_TYPE, "0"),
+            new ProviderConfigProperty(CREDENTIAL_CACHE_SIZE,
+                "Credential cache size",
+                "The maximum number of users in the credential cache",
+                ProviderConfigProperty.STRING_TYPE, "10000"),
+            new ProviderConfigProperty(FAILED_LOGIN_CACHE_TTL,
+                "Failed login cache TTL (s)",
+                "How long failed credentials are rejected without asking"
+                    + " Moodle again, 0 disables the cache",
+                ProviderConfigProperty.STRING_TYPE, "60"),
+            new ProviderConfigProperty(USER_LOGIN_RATE,
+                "Logins per user (per minute)",
+                "The maximum number of login attempts for a username"
+                    + " per minute, 0 disables the limit",
+                ProviderConfigProperty.STRING_TYPE, "10"),
+            new ProviderConfigProperty(ADDRESS_LOGIN_RATE,
+                "Logins per address (per minute)",
+                "The maximum number of login attempts from a client"
+                    + " address per minute, 0 (the default) disables the"
+                    + " limit. Only enable this if Keycloak is configured"
+                    + " to use the proxy headers (see option proxy-headers),"
+                    + " else all clients behind a load balancer share the"
+                    + " balancer's address. Clients behind a NAT always"
+                    + " share an address.",
+                ProviderConfigProperty.STRING_TYPE, "0"));
     }
 
 }
@@ -0,0 +1,75 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A flight recorder event for a login with the Moodle authenticator.
+ */
+@Name("org.jdrupes.keycloak.moodleauth.MoodleLogin")
+@Label("Moodle Login")
+@Category({ "Keycloak", "Moodle" })
+@Description("A login verified with the Moodle authenticator")
+@StackTrace(false)
+@SuppressWarnings("PMD.DataClass")
+/* default */ final class MoodleLoginEvent extends Event {
+
+    @Label("Site")
+    /* default */ String site;
+
+    @Label("Outcome")
+    /* default */ String outcome;
+
+    @Label("Credential Cache")
+    @Description("Whether the credentials were found in the cache "
+        + "of recently verified credentials")
+    /* default */ String credentialCache;
+
+    @Label("Shared Verification")
+    @Description("Whether the verification by Moodle was shared with "
+        + "a concurrent login")
+    /* default */ boolean shared;
+
+    @Label("Configuration")
+    @Description("The time spent on resolving the configuration and site")
+    @Timespan
+    /* default */ long configDuration;
+
+    @Label("Verification")
+    @Description("The time spent on obtaining the token and profile")
+    @Timespan
+    /* default */ long verifyDuration;
+
+    @Label("User Lookup")
+    @Description("The time spent on finding or creating the user")
+    @Timespan
+    /* default */ long userDuration;
+
+    @Label("User Update")
+    @Description("The time spent on updating the user's attributes")
+    @Timespan
+    /* default */ long updateDuration;
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.storage.UserStorageProvider;
+
+/**
+ * The user storage provider for Moodle. Users are imported into
+ * Keycloak's local storage by synchronization (see
+ * {@link MoodleUserStorageProviderFactory}) and authenticated with
+ * the {@link MoodleAuthenticator}, so the provider itself has
+ * nothing to do.
+ */
+public class MoodleUserStorageProvider implements UserStorageProvider {
+
+    @SuppressWarnings({ "unused", "PMD.SingularField" })
+    private final KeycloakSession session;
+    @SuppressWarnings({ "unused", "PMD.SingularField" })
+    private final ComponentModel model;
+
+    /**
+     * Instantiates a new moodle user storage provider.
+     *
+     * @param session the session
+     * @param model the model
+     */
+    public MoodleUserStorageProvider(KeycloakSession session,
+            ComponentModel model) {
+        this.session = session;
+        this.model = model;
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
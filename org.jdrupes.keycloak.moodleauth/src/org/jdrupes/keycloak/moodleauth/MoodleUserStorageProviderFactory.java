@@ -0,0 +1,167 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleSites;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * A factory for {@link MoodleUserStorageProvider}s that imports
+ * the users of a Moodle site. The import requires a token for a
+ * Moodle web service that includes the function
+ * `core_user_get_users_by_field` and a user that may view all
+ * users' details.
+ */
+public class MoodleUserStorageProviderFactory implements
+        UserStorageProviderFactory<MoodleUserStorageProvider>,
+        ImportSynchronization {
+
+    /* default */ static final String SERVICE_TOKEN = "serviceToken";
+    /* default */ static final String SYNC_WINDOW_SIZE = "syncWindowSize";
+    /* default */ static final String SYNC_MAX_GAP = "syncMaxGap";
+    private static final String PROVIDER_ID = "moodle";
+    private final MoodleSites sites = MoodleSites.acquireShared();
+
+    @Override
+    public MoodleUserStorageProvider create(KeycloakSession session,
+            ComponentModel model) {
+        return new MoodleUserStorageProvider(session, model);
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Imports the users of a moodle instance.";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return List.of(new ProviderConfigProperty(
+            MoodleAuthenticatorFactory.MOODLE_URL, "Moodle URL",
+            "The URL of the Moodle instance",
+            ProviderConfigProperty.STRING_TYPE, ""),
+            new ProviderConfigProperty(SERVICE_TOKEN, "Service token",
+                "The token for the Moodle web service used for"
+                    + " synchronization",
+                ProviderConfigProperty.PASSWORD, "", true),
+            new ProviderConfigProperty(SYNC_WINDOW_SIZE, "Window size",
+                "The number of user ids requested from Moodle and"
+                    + " stored in a single transaction",
+                ProviderConfigProperty.STRING_TYPE, "500"),
+            new ProviderConfigProperty(SYNC_MAX_GAP, "Maximum id gap",
+                "The number of consecutive user ids without a user"
+                    + " after which the synchronization ends",
+                ProviderConfigProperty.STRING_TYPE, "5000"));
+    }
+
+    @Override
+    public void validateConfiguration(KeycloakSession session,
+            RealmModel realm, ComponentModel config)
+            throws ComponentValidationException {
+        if (value(config, MoodleAuthenticatorFactory.MOODLE_URL).isEmpty()) {
+            throw new ComponentValidationException("Moodle URL missing.");
+        }
+        if (value(config, SERVICE_TOKEN).isEmpty()) {
+            throw new ComponentValidationException("Service token missing.");
+        }
+        try {
+            Integer.parseInt(value(config, SYNC_WINDOW_SIZE, "500"));
+            Long.parseLong(value(config, SYNC_MAX_GAP, "5000"));
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException(
+                "Invalid number: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Imports all users.
+     *
+     * @param sessionFactory the session factory
+     * @param realmId the realm id
+     * @param model the model
+     * @return the synchronization result
+     */
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model) {
+        var site = sites
+            .site(value(model, MoodleAuthenticatorFactory.MOODLE_URL));
+        return new UserImport(sessionFactory, realmId, model.getId(), site,
+            value(model, SERVICE_TOKEN))
+                .setWindowSize(Integer
+                    .parseInt(value(model, SYNC_WINDOW_SIZE, "500")))
+                .setMaxGap(Long.parseLong(value(model, SYNC_MAX_GAP, "5000")))
+                .run();
+    }
+
+    /**
+     * Imports the users that have changed. Moodle's web services
+     * don't provide the time of the last modification of a user,
+     * so all users are retrieved. Keycloak's users are only updated
+     * if their profile has changed (see {@link ProfileUpdater}), which
+     * makes this much cheaper than a full import into an empty realm.
+     *
+     * @param lastSync the last sync
+     * @param sessionFactory the session factory
+     * @param realmId the realm id
+     * @param model the model
+     * @return the synchronization result
+     */
+    @Override
+    public SynchronizationResult syncSince(Date lastSync,
+            KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model) {
+        return sync(sessionFactory, realmId, model);
+    }
+
+    /**
+     * Releases the shared site registry. The HTTP clients of the
+     * sites are closed when no other provider uses the registry.
+     */
+    @Override
+    public void close() {
+        MoodleSites.releaseShared();
+    }
+
+    private static String value(ComponentModel model, String key) {
+        return value(model, key, "");
+    }
+
+    private static String value(ComponentModel model, String key,
+            String defaultValue) {
+        return Optional.ofNullable(model.get(key)).map(String::trim)
+            .filter(v -> !v.isEmpty()).orElse(defaultValue);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.io.IOException;
+import java.util.Objects;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleSiteInfo;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
+import org.keycloak.models.UserModel;
+
+/**
+ * Copies the profile information from Moodle to a Keycloak user.
+ * Attributes are only written if their values have changed. With
+ * the JPA user store, every write marks the entity as dirty and
+ * causes updates of the database and invalidations of the caches
+ * in the cluster.
+ */
+public final class ProfileUpdater {
+
+    private ProfileUpdater() {
+    }
+
+    /**
+     * Provides the site info, which may require a request to Moodle.
+     */
+    @FunctionalInterface
+    public interface SiteInfoSource {
+
+        /**
+         * Returns the site info.
+         *
+         * @return the moodle site info
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        MoodleSiteInfo get() throws IOException;
+    }
+
+    /**
+     * Updates the Keycloak user with the profile information
+     * from Moodle. The site info is only requested if the user
+     * record lacks the first or last name.
+     *
+     * @param kcUser the Keycloak user
+     * @param moodleUser the moodle user
+     * @param siteInfo supplies the site info
+     * @return true, if the Keycloak user has been modified
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static boolean update(UserModel kcUser, MoodleUser moodleUser,
+            SiteInfoSource siteInfo) throws IOException {
+        String firstName = moodleUser.getFirstname();
+        String lastName = moodleUser.getLastname();
+        if (isBlank(firstName) || isBlank(lastName)) {
+            var info = siteInfo.get();
+            if (isBlank(firstName)) {
+                firstName = info.getFirstname();
+            }
+            if (isBlank(lastName)) {
+                lastName = info.getLastname();
+            }
+        }
+        return update(kcUser, moodleUser.getEmail(), firstName, lastName);
+    }
+
+    /**
+     * Updates the Keycloak user with the profile information from
+     * Moodle's user record only.
+     *
+     * @param kcUser the Keycloak user
+     * @param moodleUser the moodle user
+     * @return true, if the Keycloak user has been modified
+     */
+    public static boolean update(UserModel kcUser, MoodleUser moodleUser) {
+        return update(kcUser, moodleUser.getEmail(),
+            moodleUser.getFirstname(), moodleUser.getLastname());
+    }
+
+    private static boolean update(UserModel kcUser, String email,
+            String firstName, String lastName) {
+        boolean modified = false;
+        // Keycloak stores emails in lower case
+        if (!(kcUser.getEmail() == null ? email == null
+            : kcUser.getEmail().equalsIgnoreCase(email))) {
+            kcUser.setEmail(email);
+            modified = true;
+        }
+        if (!kcUser.isEmailVerified()) {
+            kcUser.setEmailVerified(true);
+            modified = true;
+        }
+        if (!Objects.equals(kcUser.getFirstName(), firstName)) {
+            kcUser.setFirstName(firstName);
+            modified = true;
+        }
+        if (!Objects.equals(kcUser.getLastName(), lastName)) {
+            kcUser.setLastName(lastName);
+            modified = true;
+        }
+        return modified;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jdrupes.keycloak.moodleauth.moodle.MoodleSite;
+import org.jdrupes.keycloak.moodleauth.moodle.RestClient;
+import org.jdrupes.keycloak.moodleauth.moodle.actions.MoodleUsersById;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.ServicesLogger;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Imports the users of a Moodle site into a realm. The users are
+ * retrieved in windows of ids (see {@link MoodleUsersById}) and each
+ * window is written to Keycloak in a transaction of its own. The
+ * next window is requested from Moodle while the current window is
+ * being written. Memory usage therefore only depends on the window
+ * size, not on the number of users.
+ *
+ * If storing a window fails, e.g. because a single user conflicts
+ * with an existing local user, the users of the window are stored
+ * again one by one, each in a transaction of its own. Only the
+ * conflicting users are then counted as failed.
+ *
+ * The scan ends when no user has been found for a configurable number
+ * of consecutive ids, because Moodle does not report the highest id
+ * in use. Users with ids behind a larger gap (of deleted users) are
+ * therefore not imported. The last id scanned and the reason why the
+ * scan ended are logged.
+ */
+public class UserImport {
+
+    private static ServicesLogger log = ServicesLogger.LOGGER;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final String federationLink;
+    private final RestClient restClient;
+    private int windowSize = 500;
+    private long maxGap = 5000;
+
+    /**
+     * What happened to a user from Moodle.
+     */
+    private enum Stored {
+        ADDED, UPDATED, UNCHANGED
+    }
+
+    /**
+     * Instantiates a new user import.
+     *
+     * @param sessionFactory the session factory
+     * @param realmId the realm id
+     * @param federationLink the id of the user storage provider
+     * that is set as federation link of created users
+     * @param site the site
+     * @param token the token for accessing Moodle's web services
+     */
+    public UserImport(KeycloakSessionFactory sessionFactory, String realmId,
+            String federationLink, MoodleSite site, String token) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.federationLink = federationLink;
+        restClient = new RestClient(site,
+            site.resolve("webservice/rest/server.php"))
+                .setDefaultParams(
+                    Map.of("wstoken", token, "moodlewsrestformat", "json"));
+    }
+
+    /**
+     * Sets the number of ids requested from Moodle and written to
+     * Keycloak in a single transaction.
+     *
+     * @param windowSize the window size
+     * @return the user import
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public UserImport setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of consecutive ids without a user after which
+     * the scan ends.
+     *
+     * @param maxGap the max gap
+     * @return the user import
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public UserImport setMaxGap(long maxGap) {
+        this.maxGap = maxGap;
+        return this;
+    }
+
+    /**
+     * Runs the import. Users that exist already are updated, but only
+     * attributes that have changed are written (see
+     * {@link ProfileUpdater}).
+     *
+     * @return the synchronization result
+     */
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    public SynchronizationResult run() {
+        var result = new SynchronizationResult();
+        var action = new MoodleUsersById(restClient);
+        long firstId = 1;
+        long gap = 0;
+        long lastId = 0;
+        CompletableFuture<List<MoodleUser>> pending
+            = action.invokeAsync(firstId, windowSize);
+        try {
+            while (pending != null) {
+                var users = RestClient.await(pending);
+                lastId = firstId + windowSize - 1;
+                gap = users.isEmpty() ? gap + windowSize : 0;
+                pending = null;
+                if (gap < maxGap) {
+                    firstId += windowSize;
+                    pending = action.invokeAsync(firstId, windowSize);
+                }
+                if (!users.isEmpty()) {
+                    store(users, result);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.errorf("Importing users from Moodle failed after id %d: %s",
+                lastId, e.getMessage());
+            result.increaseFailed();
+            return result;
+        }
+        log.infof("Imported users from Moodle, scanned ids up to %d (%s). The"
+            + " scan ended after %d ids without users, users with higher"
+            + " ids are only found with a larger maximum gap.", lastId,
+            result.getStatus(), gap);
+        return result;
+    }
+
+    /**
+     * Stores the users in a single transaction. If this fails, stores
+     * them one by one.
+     */
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private void store(List<MoodleUser> users, SynchronizationResult result) {
+        List<Stored> outcomes = new ArrayList<>(users.size());
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                session -> {
+                    outcomes.clear();
+                    var realm = session.realms().getRealm(realmId);
+                    for (var moodleUser : users) {
+                        outcomes.add(store(session, realm, moodleUser));
+                    }
+                });
+            outcomes.forEach(outcome -> count(outcome, result));
+            return;
+        } catch (RuntimeException e) {
+            log.warnf("Storing %d users imported from Moodle failed (%s),"
+                + " storing them one by one.", users.size(), e.getMessage());
+        }
+        for (var moodleUser : users) {
+            var outcome = new AtomicReference<Stored>();
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                    session -> outcome.set(store(session,
+                        session.realms().getRealm(realmId), moodleUser)));
+                count(outcome.get(), result);
+            } catch (RuntimeException e) {
+                log.errorf("Storing user %s imported from Moodle failed: %s",
+                    moodleUser.getUsername(), e.getMessage());
+                result.increaseFailed();
+            }
+        }
+    }
+
+    private Stored store(KeycloakSession session, RealmModel realm,
+            MoodleUser moodleUser) {
+        var username = moodleUser.getUsername();
+        if (username == null || "guest".equals(username)) {
+            return Stored.UNCHANGED;
+        }
+        var user = session.users().getUserByUsername(realm, username);
+        if (user == null) {
+            user = session.users().addUser(realm, username);
+            user.setFederationLink(federationLink);
+            user.setEnabled(!moodleUser.isSuspended());
+            ProfileUpdater.update(user, moodleUser);
+            return Stored.ADDED;
+        }
+        // Suspending and unsuspending in Moodle both carry over.
+        boolean modified = false;
+        if (user.isEnabled() == moodleUser.isSuspended()) {
+            user.setEnabled(!moodleUser.isSuspended());
+            modified = true;
+        }
+        modified |= ProfileUpdater.update(user, moodleUser);
+        return modified ? Stored.UPDATED : Stored.UNCHANGED;
+    }
+
+    private static void count(Stored outcome,
+            SynchronizationResult result) {
+        switch (outcome) {
+        case ADDED -> result.increaseAdded();
+        case UPDATED -> result.increaseUpdated();
+        default -> {
+        }
+        }
+    }
+}
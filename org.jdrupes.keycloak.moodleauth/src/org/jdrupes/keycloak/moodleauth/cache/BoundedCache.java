@@ -0,0 +1,236 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.cache;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache with a maximum number of entries and a time to live
+ * for each entry. If the cache is full, the least recently used
+ * entry is evicted. Expired entries are removed when accessed or
+ * when they become the least recently used entry while space is
+ * needed.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@SuppressWarnings("PMD.AvoidSynchronizedAtMethodLevel")
+public class BoundedCache<K, V> {
+
+    private final String name;
+    private final Map<K, Entry<V>> entries
+        = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cache entry.
+     *
+     * @param <V> the value type
+     * @param value the value
+     * @param created when the entry was created
+     * @param expires when the entry expires
+     */
+    public record Entry<V>(V value, Instant created, Instant expires) {
+
+        /**
+         * Checks if the entry has expired.
+         *
+         * @param now the current time
+         * @return true, if expired
+         */
+        public boolean isExpired(Instant now) {
+            return !now.isBefore(expires);
+        }
+    }
+
+    /**
+     * Instantiates a new cache.
+     *
+     * @param name the name (used for metrics)
+     * @param maxSize the maximum number of entries
+     */
+    public BoundedCache(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the name.
+     *
+     * @return the name
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Sets the maximum number of entries. Excess entries are evicted.
+     *
+     * @param maxSize the max size
+     * @return the bounded cache
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public synchronized BoundedCache<K, V> setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        shrink();
+        return this;
+    }
+
+    /**
+     * Returns the entry for the given key if it exists and has not
+     * expired yet.
+     *
+     * @param key the key
+     * @return the entry
+     */
+    public synchronized Optional<Entry<V>> getEntry(K key) {
+        var entry = entries.get(key);
+        if (entry != null && entry.isExpired(Instant.now())) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(entry);
+    }
+
+    /**
+     * Returns the value for the given key if it exists and has not
+     * expired yet.
+     *
+     * @param key the key
+     * @return the value
+     */
+    public Optional<V> get(K key) {
+        return getEntry(key).map(Entry::value);
+    }
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttl the time to live
+     */
+    public synchronized void put(K key, V value, Duration ttl) {
+        if (maxSize <= 0) {
+            return;
+        }
+        var now = Instant.now();
+        entries.put(key, new Entry<>(value, now, now.plus(ttl)));
+        shrink();
+    }
+
+    /**
+     * Removes the entry for the given key.
+     *
+     * @param key the key
+     */
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of entries, including expired entries that
+     * haven't been removed yet.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void shrink() {
+        var now = Instant.now();
+        for (Iterator<Entry<V>> iter = entries.values().iterator();
+                entries.size() > maxSize && iter.hasNext();) {
+            // Least recently used first
+            if (!iter.next().isExpired(now)) {
+                evictions.increment();
+            }
+            iter.remove();
+        }
+    }
+
+    /**
+     * Records the result of a lookup that has been made in a
+     * {@link SharedStore} used instead of this cache. This keeps
+     * the hits and misses meaningful if the entries are shared.
+     *
+     * @param hit whether the entry was found
+     */
+    public void recordLookup(boolean hit) {
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Returns the number of successful lookups.
+     *
+     * @return the hits
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of failed lookups.
+     *
+     * @return the misses
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries evicted because the cache was full.
+     *
+     * @return the evictions
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedCache [" + name + ", size=" + size() + "]";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.cache;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+/**
+ * A {@link SharedStore} backed by a cache of Keycloak's embedded
+ * Infinispan. The cache is defined when the store is created. Values
+ * are byte arrays, which Infinispan replicates without requiring any
+ * additional marshaller configuration.
+ */
+public class InfinispanStore implements SharedStore {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(InfinispanStore.class.getName());
+
+    private final Cache<String, byte[]> cache;
+
+    /**
+     * How entries are distributed in the cluster.
+     */
+    public enum Mode {
+        /** Every node holds all entries. */
+        REPLICATED,
+        /** Each entry is held by two nodes. */
+        DISTRIBUTED
+    }
+
+    /**
+     * Instantiates a new store that uses the given cache.
+     *
+     * @param cache the cache
+     */
+    public InfinispanStore(Cache<String, byte[]> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Defines a cache with the given name (unless it exists already)
+     * and returns a store that uses it. If the cache manager is not
+     * clustered, a local cache is defined.
+     *
+     * @param manager the cache manager
+     * @param name the name of the cache
+     * @param mode the mode
+     * @param maxCount the maximum number of entries on a node
+     * @param maxLifespan the maximum lifespan of an entry, used in
+     * addition to the time to live of the individual entries
+     * @return the store
+     */
+    public static InfinispanStore define(EmbeddedCacheManager manager,
+            String name, Mode mode, long maxCount, Duration maxLifespan) {
+        if (manager.getCacheConfiguration(name) == null) {
+            CacheMode cacheMode = CacheMode.LOCAL;
+            if (manager.getCacheManagerConfiguration().isClustered()) {
+                cacheMode = mode == Mode.REPLICATED ? CacheMode.REPL_ASYNC
+                    : CacheMode.DIST_ASYNC;
+            }
+            var builder = new ConfigurationBuilder();
+            builder.clustering().cacheMode(cacheMode);
+            if (cacheMode == CacheMode.DIST_ASYNC) {
+                builder.clustering().hash().numOwners(2);
+            }
+            builder.expiration().lifespan(maxLifespan.toMillis(),
+                TimeUnit.MILLISECONDS);
+            builder.memory().maxCount(maxCount);
+            manager.defineConfiguration(name, builder.build());
+            final var usedMode = cacheMode;
+            logger.log(Level.FINE,
+                () -> "Defined cache " + name + " (" + usedMode + ")");
+        }
+        return new InfinispanStore(manager.getCache(name));
+    }
+
+    @Override
+    public Optional<byte[]> get(String key) {
+        return Optional.ofNullable(cache.get(key));
+    }
+
+    @Override
+    public void put(String key, byte[] value, Duration ttl) {
+        cache.put(key, value, ttl.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public String toString() {
+        return "InfinispanStore [" + cache.getName() + "]";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.cache;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * A store for cache entries that is shared by all nodes of a
+ * Keycloak cluster. Keys are strings and values are byte arrays
+ * in a compact encoding chosen by the user of the store. This keeps
+ * replication traffic and memory usage small and avoids the need
+ * to register marshallers for application classes.
+ */
+public interface SharedStore {
+
+    /**
+     * Returns the value for the given key if it exists and has not
+     * expired yet.
+     *
+     * @param key the key
+     * @return the value
+     */
+    Optional<byte[]> get(String key);
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttl the time to live
+     */
+    void put(String key, byte[] value, Duration ttl);
+
+    /**
+     * Removes the entry for the given key.
+     *
+     * @param key the key
+     */
+    void remove(String key);
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link RetryPolicy} with exponential backoff and "full jitter",
+ * i.e. the delay before a retry is chosen randomly between zero and
+ * the exponentially growing upper bound. This spreads the retries
+ * of concurrent logins instead of having them hit the server in sync.
+ * 
+ * Failures are only retried if they are transient, see
+ * {@link #isTransient(Throwable, boolean)}.
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+
+    /** The default policy. */
+    public static final BackoffRetryPolicy DEFAULT = new BackoffRetryPolicy(
+        3, Duration.ofMillis(200), Duration.ofSeconds(2));
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * Instantiates a new backoff retry policy.
+     *
+     * @param maxRetries the maximum number of retries
+     * @param baseDelay the upper bound for the delay before the
+     * first retry, doubled for each subsequent retry
+     * @param maxDelay the maximum upper bound for the delay
+     */
+    public BackoffRetryPolicy(int maxRetries, Duration baseDelay,
+            Duration maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = Math.max(1, baseDelay.toMillis());
+        this.maxDelay = Math.max(this.baseDelay, maxDelay.toMillis());
+    }
+
+    @Override
+    public Duration retryDelay(int retry, Throwable cause,
+            boolean idempotent) {
+        if (retry > maxRetries || !isTransient(cause, idempotent)) {
+            return null;
+        }
+        long bound = maxDelay;
+        if (retry <= Long.numberOfLeadingZeros(baseDelay)) {
+            bound = Math.min(maxDelay, baseDelay << (retry - 1));
+        }
+        return Duration
+            .ofMillis(ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+
+    /**
+     * Checks if the failure is transient, i.e. a retry can succeed
+     * and is safe. Requests rejected by the {@link CircuitBreaker}
+     * or the {@link ConcurrencyLimiter} are never retried. Moodle
+     * reporting `ex_unabletolock` and failures to connect are always
+     * considered transient, because the
+     * request has not been processed. Other I/O errors are only
+     * considered transient if the invocation is idempotent.
+     *
+     * @param cause the cause
+     * @param idempotent if the invocation is idempotent
+     * @return true, if transient
+     */
+    public static boolean isTransient(Throwable cause, boolean idempotent) {
+        if (cause instanceof CircuitOpenException
+            || cause instanceof LimitExceededException) {
+            return false;
+        }
+        if (cause instanceof MoodleException e) {
+            return "ex_unabletolock".equals(e.errorCode());
+        }
+        if (cause instanceof ConnectException
+            || cause instanceof HttpConnectTimeoutException) {
+            return true;
+        }
+        return idempotent && cause instanceof IOException;
+    }
+
+    @Override
+    public String toString() {
+        return "BackoffRetryPolicy [maxRetries=" + maxRetries
+            + ", baseDelay=" + baseDelay + "ms, maxDelay=" + maxDelay + "ms]";
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker for the requests to a site. The breaker records
+ * the outcome of the most recent requests. If the rate of failures
+ * (I/O errors including timeouts and calls that take too long) exceeds the
+ * threshold, the breaker opens and requests fail immediately with a
+ * {@link CircuitOpenException}. After a while, the breaker becomes
+ * half-open and lets a few probe requests pass. If they succeed, the
+ * breaker closes again, else it re-opens.
+ *
+ * @startuml CircuitBreaker.svg
+ * [*] --> Closed
+ * Closed --> Open: failure rate exceeded
+ * Open --> HalfOpen: open duration elapsed
+ * HalfOpen --> Closed: probes succeeded
+ * HalfOpen --> Open: probe failed
+ * @enduml
+ */
+@SuppressWarnings("PMD.AvoidSynchronizedAtMethodLevel")
+public class CircuitBreaker {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final boolean[] window;
+    private final int minCalls;
+    private final int failureRatePercent;
+    private final Duration openDuration;
+    private final Duration slowCallThreshold;
+    private final int probes;
+    private BiConsumer<State, State> listener = (from, to) -> {
+    };
+
+    private State state = State.CLOSED;
+    private int next;
+    private int recorded;
+    private int failures;
+    private Instant openUntil = Instant.MIN;
+    private int probesStarted;
+    private int probesSucceeded;
+    private long rejected;
+
+    /**
+     * Instantiates a new circuit breaker.
+     *
+     * @param name the name (used for logging)
+     * @param windowSize the number of recent calls to consider
+     * @param minCalls the minimum number of recorded calls before
+     * the breaker may open
+     * @param failureRatePercent the failure rate that opens the breaker
+     * @param openDuration the time to stay open before probing
+     * @param slowCallThreshold calls that take longer are considered
+     * failures
+     * @param probes the number of successful probes required to close
+     * the breaker again
+     */
+    @SuppressWarnings("PMD.ExcessiveParameterList")
+    public CircuitBreaker(String name, int windowSize, int minCalls,
+            int failureRatePercent, Duration openDuration,
+            Duration slowCallThreshold, int probes) {
+        this.name = name;
+        this.window = new boolean[windowSize];
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.failureRatePercent = failureRatePercent;
+        this.openDuration = openDuration;
+        this.slowCallThreshold = slowCallThreshold;
+        this.probes = probes;
+    }
+
+    /**
+     * Instantiates a new circuit breaker with default settings.
+     * The breaker opens if at least half of the last 20 calls failed
+     * or took longer than 10 seconds. It stays open for 30 seconds
+     * and closes again after 3 successful probes.
+     *
+     * @param name the name
+     */
+    public CircuitBreaker(String name) {
+        this(name, 20, 10, 50, Duration.ofSeconds(30), Duration.ofSeconds(10),
+            3);
+    }
+
+    /**
+     * Sets a listener that is invoked on state changes with the
+     * previous and the new state. The listener is invoked while
+     * holding the breaker's lock and must therefore not block.
+     *
+     * @param listener the listener
+     * @return the circuit breaker
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public CircuitBreaker setListener(BiConsumer<State, State> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return the state
+     */
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * Checks if the breaker is open and requests are currently rejected.
+     *
+     * @return true, if open
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && Instant.now().isBefore(openUntil);
+    }
+
+    /**
+     * Returns the number of calls rejected so far.
+     *
+     * @return the number of calls
+     */
+    public synchronized long rejectedCalls() {
+        return rejected;
+    }
+
+    /**
+     * Checks if a call is permitted. Every permitted call must be
+     * followed by an invocation of {@link #record(Duration, Throwable)}.
+     *
+     * @return true, if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (Instant.now().isBefore(openUntil)) {
+                rejected += 1;
+                return false;
+            }
+            transition(State.HALF_OPEN);
+            probesStarted = 0;
+            probesSucceeded = 0;
+            // Fall through
+        default:
+            if (probesStarted >= probes) {
+                rejected += 1;
+                return false;
+            }
+            probesStarted += 1;
+            return true;
+        }
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     *
+     * @param duration the duration of the call
+     * @param failure the failure or `null` if the call succeeded
+     */
+    public synchronized void record(Duration duration, Throwable failure) {
+        boolean failed = isFailure(failure)
+            || duration.compareTo(slowCallThreshold) > 0;
+        switch (state) {
+        case HALF_OPEN:
+            if (failed) {
+                open();
+                return;
+            }
+            probesSucceeded += 1;
+            if (probesSucceeded >= probes) {
+                reset();
+                transition(State.CLOSED);
+            }
+            return;
+        case CLOSED:
+            if (recorded == window.length && window[next]) {
+                failures -= 1;
+            }
+            window[next] = failed;
+            next = (next + 1) % window.length;
+            recorded = Math.min(recorded + 1, window.length);
+            if (failed) {
+                failures += 1;
+            }
+            if (recorded >= minCalls
+                && failures * 100 >= failureRatePercent * recorded) {
+                open();
+            }
+            return;
+        default:
+            // Late result of call permitted before opening
+        }
+    }
+
+    /**
+     * Checks if the given failure indicates a problem with the site.
+     * Errors reported by Moodle (except `ex_unabletolock`) indicate
+     * that the site is working.
+     *
+     * @param failure the failure
+     * @return true, if it is a failure
+     */
+    private static boolean isFailure(Throwable failure) {
+        if (failure == null) {
+            return false;
+        }
+        if (failure instanceof MoodleException e) {
+            return "ex_unabletolock".equals(e.errorCode());
+        }
+        return failure instanceof IOException;
+    }
+
+    private void open() {
+        openUntil = Instant.now().plus(openDuration);
+        reset();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+
+    private void transition(State newState) {
+        if (state == newState) {
+            return;
+        }
+        State oldState = state;
+        state = newState;
+        logger.log(newState == State.OPEN ? Level.WARNING : Level.INFO,
+            () -> "Circuit breaker for " + name + " changed from " + oldState
+                + " to " + newState);
+        listener.accept(oldState, newState);
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker [" + name + ", " + state() + "]";
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of concurrent requests to a site. The limit
+ * adapts to the site's condition (AIMD): it is reduced by a constant
+ * factor whenever a request indicates that the site is overloaded
+ * (Moodle reporting `ex_unabletolock`, a timeout or a response time
+ * above the threshold) and increased by one per "limit" successful
+ * requests otherwise.
+ *
+ * Requests that exceed the limit wait in a bounded queue until a
+ * permit becomes available or their deadline is reached. If the queue
+ * is full or the deadline is reached, the request fails with a
+ * {@link LimitExceededException}.
+ */
+@SuppressWarnings("PMD.AvoidSynchronizedAtMethodLevel")
+public class ConcurrencyLimiter {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(ConcurrencyLimiter.class.getName());
+    private static final double BACKOFF_FACTOR = 0.7;
+    private static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(10);
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final Duration latencyThreshold;
+    private final Deque<CompletableFuture<Permit>> waiting
+        = new ArrayDeque<>();
+    private final LongAdder rejected = new LongAdder();
+    private double limit;
+    private int inFlight;
+
+    /**
+     * A permit to send a request. Must be released when the
+     * request has completed.
+     */
+    public final class Permit {
+
+        private boolean released;
+
+        private Permit() {
+        }
+
+        /**
+         * Releases the permit and adapts the limit according to the
+         * outcome of the request.
+         *
+         * @param duration the duration of the request
+         * @param failure the failure or `null`
+         */
+        public void release(Duration duration, Throwable failure) {
+            ConcurrencyLimiter.this.release(this,
+                isOverload(duration, failure) ? Boolean.TRUE
+                    : failure == null ? Boolean.FALSE : null);
+        }
+
+        /**
+         * Releases the permit without adapting the limit, used
+         * if the request has not been sent.
+         */
+        public void release() {
+            ConcurrencyLimiter.this.release(this, null);
+        }
+    }
+
+    /**
+     * Instantiates a new concurrency limiter.
+     *
+     * @param name the name (used for logging)
+     * @param initialLimit the initial limit
+     * @param minLimit the min limit
+     * @param maxLimit the max limit
+     * @param maxQueued the maximum number of waiting requests
+     * @param latencyThreshold response times above this threshold
+     * indicate an overloaded site
+     */
+    @SuppressWarnings("PMD.ExcessiveParameterList")
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit,
+            int maxLimit, int maxQueued, Duration latencyThreshold) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * Instantiates a new concurrency limiter with default settings.
+     * The limit starts at 20 and varies between 2 and 200. At most
+     * 200 requests may wait for a permit. Response times above 3
+     * seconds indicate an overloaded site.
+     *
+     * @param name the name
+     */
+    public ConcurrencyLimiter(String name) {
+        this(name, 20, 2, 200, 200, Duration.ofSeconds(3));
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the limit
+     */
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of requests in progress.
+     *
+     * @return the number of requests
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of requests waiting for a permit.
+     *
+     * @return the number of requests
+     */
+    public synchronized int queued() {
+        return waiting.size();
+    }
+
+    /**
+     * Returns the number of requests that failed because no permit
+     * was granted.
+     *
+     * @return the number of requests
+     */
+    public long rejectedCalls() {
+        return rejected.sum();
+    }
+
+    /**
+     * Acquires a permit. The returned future completes when the
+     * permit has been granted or fails with a
+     * {@link LimitExceededException}.
+     *
+     * @param deadline the time until which the request may wait or
+     * `null` for a default maximum waiting time
+     * @return the future permit
+     */
+    public CompletableFuture<Permit> acquire(Instant deadline) {
+        CompletableFuture<Permit> result;
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight += 1;
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (waiting.size() >= maxQueued) {
+                rejected.increment();
+                return CompletableFuture.failedFuture(
+                    new LimitExceededException("Too many requests waiting"
+                        + " for " + name));
+            }
+            result = new CompletableFuture<>();
+            waiting.add(result);
+        }
+        long waitMillis = deadline == null ? DEFAULT_MAX_WAIT.toMillis()
+            : Math.max(0, Duration.between(Instant.now(), deadline).toMillis());
+        CompletableFuture.delayedExecutor(waitMillis, TimeUnit.MILLISECONDS)
+            .execute(() -> {
+                boolean removed;
+                synchronized (this) {
+                    removed = waiting.remove(result);
+                }
+                if (removed) {
+                    rejected.increment();
+                    result.completeExceptionally(new LimitExceededException(
+                        "Timeout waiting for a request permit for " + name));
+                }
+            });
+        return result;
+    }
+
+    private boolean isOverload(Duration duration, Throwable failure) {
+        if (failure instanceof MoodleException e) {
+            return "ex_unabletolock".equals(e.errorCode());
+        }
+        return failure instanceof HttpTimeoutException
+            || duration.compareTo(latencyThreshold) > 0;
+    }
+
+    /**
+     * Releases a permit and adapts the limit.
+     *
+     * @param permit the permit
+     * @param overload `true` for a request that indicated an overload,
+     * `false` for a successful request, `null` if the limit is not
+     * to be adapted
+     */
+    @SuppressWarnings("PMD.AvoidUsingShortType")
+    private void release(Permit permit, Boolean overload) {
+        List<CompletableFuture<Permit>> granted = new ArrayList<>();
+        synchronized (this) {
+            if (permit.released) {
+                return;
+            }
+            permit.released = true;
+            inFlight -= 1;
+            if (Boolean.TRUE.equals(overload)) {
+                int oldLimit = (int) limit;
+                limit = Math.max(minLimit, limit * BACKOFF_FACTOR);
+                if ((int) limit != oldLimit) {
+                    logger.log(Level.FINE, () -> "Reduced concurrency limit"
+                        + " for " + name + " to " + (int) limit);
+                }
+            } else if (Boolean.FALSE.equals(overload)) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight += 1;
+                granted.add(waiting.poll());
+            }
+        }
+        for (var waiter : granted) {
+            if (!waiter.complete(new Permit())) {
+                // Cannot happen (timed out waiters are removed), be safe
+                synchronized (this) {
+                    inFlight -= 1;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter [" + name + ", limit=" + limit()
+            + ", inFlight=" + inFlight() + "]";
+    }
+}
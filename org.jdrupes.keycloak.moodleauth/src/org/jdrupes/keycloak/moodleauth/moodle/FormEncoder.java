@@ -0,0 +1,190 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.util.Collection;
+import java.util.Map;
+import org.jdrupes.keycloak.moodleauth.moodle.service.QueryValueEncoder;
+
+/**
+ * Encodes parameters following the non-standard conventions of PHP's
+ * `http_build_query`, i.e. nested maps and lists are flattened to keys
+ * such as `values[0]` or `requests[1][function]`. Keys and values are
+ * encoded as `application/x-www-form-urlencoded` (UTF-8), the same as
+ * {@link java.net.URLEncoder} does. Values that implement
+ * {@link QueryValueEncoder} provide their own encoding. `null` values
+ * are omitted, as in PHP.
+ *
+ * The result is built in a single pass in a buffer that is reused
+ * by subsequent invocations on the same thread.
+ *
+ * @see https://github.com/pear/PHP_Compat/blob/master/PHP/Compat/Function/http_build_query.php
+ */
+public final class FormEncoder {
+
+    private static final int MAX_RETAINED = 16 * 1024;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final ThreadLocal<StringBuilder[]> BUFFERS
+        = ThreadLocal.withInitial(() -> new StringBuilder[] {
+            new StringBuilder(256), new StringBuilder(64) });
+
+    private FormEncoder() {
+    }
+
+    /**
+     * Encodes the data.
+     *
+     * @param data the data
+     * @return the encoded data
+     */
+    public static String encode(Map<String, ?> data) {
+        return encode(null, data);
+    }
+
+    /**
+     * Encodes the data and appends it to an already encoded prefix.
+     *
+     * @param prefix the encoded prefix (may be `null`)
+     * @param data the data
+     * @return the encoded data
+     */
+    public static String encode(String prefix, Map<String, ?> data) {
+        var buffers = BUFFERS.get();
+        var out = buffers[0];
+        var key = buffers[1];
+        out.setLength(0);
+        key.setLength(0);
+        if (prefix != null) {
+            out.append(prefix);
+        }
+        encodeMap(out, key, data);
+        var result = out.toString();
+        if (out.capacity() > MAX_RETAINED) {
+            buffers[0] = new StringBuilder(256);
+        }
+        return result;
+    }
+
+    private static void encodeMap(StringBuilder out, StringBuilder key,
+            Map<?, ?> data) {
+        int baseLength = key.length();
+        for (var entry : data.entrySet()) {
+            if (baseLength == 0) {
+                key.append(entry.getKey());
+            } else {
+                key.append('[').append(entry.getKey()).append(']');
+            }
+            encodeValue(out, key, entry.getValue());
+            key.setLength(baseLength);
+        }
+    }
+
+    private static void encodeValue(StringBuilder out, StringBuilder key,
+            Object value) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Map<?, ?> map) {
+            encodeMap(out, key, map);
+            return;
+        }
+        int baseLength = key.length();
+        if (value instanceof Object[] array) {
+            for (int i = 0; i < array.length; i++) {
+                key.append('[').append(i).append(']');
+                encodeValue(out, key, array[i]);
+                key.setLength(baseLength);
+            }
+            return;
+        }
+        if (value instanceof Collection<?> collection) {
+            int index = 0;
+            for (var item : collection) {
+                key.append('[').append(index++).append(']');
+                encodeValue(out, key, item);
+                key.setLength(baseLength);
+            }
+            return;
+        }
+        if (!out.isEmpty()) {
+            out.append('&');
+        }
+        appendEncoded(out, key);
+        out.append('=');
+        if (value instanceof QueryValueEncoder encoder) {
+            out.append(encoder.asQueryValue());
+        } else {
+            appendEncoded(out, value instanceof CharSequence chars ? chars
+                : value.toString());
+        }
+    }
+
+    /**
+     * Appends the `application/x-www-form-urlencoded` encoding
+     * of the characters.
+     *
+     * @param out the output
+     * @param chars the characters
+     */
+    @SuppressWarnings({ "PMD.AvoidLiteralsInIfCondition",
+        "PMD.CognitiveComplexity" })
+    public static void appendEncoded(StringBuilder out, CharSequence chars) {
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            char chr = chars.charAt(i);
+            if (chr >= 'a' && chr <= 'z' || chr >= 'A' && chr <= 'Z'
+                || chr >= '0' && chr <= '9' || chr == '.' || chr == '-'
+                || chr == '*' || chr == '_') {
+                out.append(chr);
+                continue;
+            }
+            if (chr == ' ') {
+                out.append('+');
+                continue;
+            }
+            int codePoint = chr;
+            if (Character.isHighSurrogate(chr) && i + 1 < length
+                && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(chr, chars.charAt(++i));
+            } else if (Character.isSurrogate(chr)) {
+                // Unpaired surrogate, replaced like URLEncoder does
+                codePoint = '?';
+            }
+            if (codePoint < 0x80) {
+                appendByte(out, codePoint);
+            } else if (codePoint < 0x800) {
+                appendByte(out, 0xC0 | codePoint >> 6);
+                appendByte(out, 0x80 | codePoint & 0x3F);
+            } else if (codePoint < 0x10_000) {
+                appendByte(out, 0xE0 | codePoint >> 12);
+                appendByte(out, 0x80 | codePoint >> 6 & 0x3F);
+                appendByte(out, 0x80 | codePoint & 0x3F);
+            } else {
+                appendByte(out, 0xF0 | codePoint >> 18);
+                appendByte(out, 0x80 | codePoint >> 12 & 0x3F);
+                appendByte(out, 0x80 | codePoint >> 6 & 0x3F);
+                appendByte(out, 0x80 | codePoint & 0x3F);
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder out, int value) {
+        out.append('%').append(HEX[value >> 4 & 0xF]).append(HEX[value & 0xF]);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event for an invocation of Moodle, including
+ * its retries. The event is committed by the thread that completes
+ * the invocation, so the stack trace is omitted.
+ */
+@Name("org.jdrupes.keycloak.moodleauth.MoodleCall")
+@Label("Moodle Call")
+@Category({ "Keycloak", "Moodle" })
+@Description("An invocation of Moodle, including its retries")
+@StackTrace(false)
+@SuppressWarnings("PMD.DataClass")
+/* default */ final class MoodleCallEvent extends Event {
+
+    @Label("Site")
+    /* default */ String site;
+
+    @Label("Function")
+    @Description("The web service function or script invoked")
+    /* default */ String function;
+
+    @Label("Attempts")
+    /* default */ int attempts;
+
+    @Label("Status")
+    @Description("The HTTP status of the last response")
+    /* default */ int status;
+
+    @Label("Request Size")
+    @Description("The size of a single request")
+    @DataAmount
+    /* default */ long requestBytes;
+
+    @Label("Response Size")
+    @Description("The size of all responses received")
+    @DataAmount
+    /* default */ long responseBytes;
+
+    @Label("Outcome")
+    /* default */ String outcome;
+
+    @Label("Error Code")
+    /* default */ String errorCode;
+}
@@ -19,8 +19,8 @@
 package org.jdrupes.keycloak.moodleauth.moodle;
 
 import java.io.IOException;
-import java.net.URI;
 import java.util.Map;
+import org.jdrupes.keycloak.moodleauth.moodle.actions.MoodleGetSiteInfo;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleSiteInfo;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
 import org.jdrupes.keycloak.moodleauth.moodle.service.MoodleClient;
@@ -31,26 +31,32 @@ import org.jdrupes.keycloak.moodleauth.moodle.service.MoodleClient;
 public class MoodleClientConnection implements MoodleClient {
 
     private final RestClient restClient;
+    private final RestClient siteInfoClient;
     private final MoodleUser moodleUser;
-    private final MoodleSiteInfo siteInfo;
+    private MoodleSiteInfo siteInfo;
 
     /**
      * Instantiates a new moodle client connection.
      *
-     * @param restClient the rest client
+     * @param restClient the rest client, configured for invoking
+     * the web service
+     * @param moodleUser the moodle user
+     * @param siteInfo the site info or `null` if it is to be obtained
+     * when requested
      */
-    public MoodleClientConnection(URI siteUri, RestClient restClient,
+    public MoodleClientConnection(RestClient restClient,
             MoodleUser moodleUser, MoodleSiteInfo siteInfo) {
         this.restClient = restClient;
+        siteInfoClient = siteInfo == null ? restClient.copy() : null;
         this.moodleUser = moodleUser;
         this.siteInfo = siteInfo;
     }
 
     @Override
-    public Object invoke(String wsfunction, Map<String, Object> params)
-            throws IOException {
+    public Object invoke(String wsfunction, Map<String, Object> params,
+            boolean idempotent) throws IOException {
         return restClient.invoke(Object.class, Map.of("wsfunction", wsfunction),
-            params);
+            params, idempotent);
     }
 
     @Override
@@ -58,8 +64,24 @@ public class MoodleClientConnection implements MoodleClient {
         return moodleUser;
     }
 
+    /**
+     * Returns the site info, requesting it from Moodle when invoked
+     * for the first time. The request is made with a copy of the
+     * connection's rest client (including its retry policy and
+     * deadline), because the connection may be shared with concurrent
+     * logins (and closed by the login that created it) before the
+     * site info is needed.
+     *
+     * @return the moodle site info
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
     @Override
-    public MoodleSiteInfo siteInfo() {
+    public synchronized MoodleSiteInfo siteInfo() throws IOException {
+        if (siteInfo == null) {
+            try (var span = MoodleTracing.start("moodle.siteinfo")) {
+                siteInfo = new MoodleGetSiteInfo(siteInfoClient).invoke();
+            }
+        }
         return siteInfo;
     }
 
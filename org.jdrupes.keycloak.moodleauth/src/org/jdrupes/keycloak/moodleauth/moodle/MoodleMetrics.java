@@ -0,0 +1,288 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.net.http.HttpTimeoutException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jdrupes.keycloak.moodleauth.cache.BoundedCache;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleErrorValues;
+
+/**
+ * Registers the meters for the Moodle related components. The
+ * meters are registered with Micrometer's global registry, which
+ * Keycloak exposes on its `/metrics` endpoint if metrics are enabled.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+public final class MoodleMetrics {
+
+    private static final String NONE = "none";
+    private static MeterRegistry registry = Metrics.globalRegistry;
+    private static final Map<CallKey, Timer> requestTimers
+        = new ConcurrentHashMap<>();
+    private static final Map<CallKey, Timer> invocationTimers
+        = new ConcurrentHashMap<>();
+    private static final Map<CallKey, DistributionSummary> attemptSummaries
+        = new ConcurrentHashMap<>();
+    private static final Map<CallKey, AtomicInteger> inFlight
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The key for the meters of a call. Unused parts are {@link #NONE}.
+     */
+    private record CallKey(String site, String function, String outcome,
+            String errorCode) {
+    }
+
+    private MoodleMetrics() {
+    }
+
+    /**
+     * Returns the registry used for the meters.
+     *
+     * @return the meter registry
+     */
+    public static MeterRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Replaces the registry used for the meters. Meant for usage
+     * outside of Keycloak, e.g. in tests.
+     *
+     * @param registry the registry
+     */
+    @SuppressWarnings("PMD.AssignmentToNonFinalStatic")
+    public static void useRegistry(MeterRegistry registry) {
+        MoodleMetrics.registry = registry;
+        requestTimers.clear();
+        invocationTimers.clear();
+        attemptSummaries.clear();
+        inFlight.clear();
+    }
+
+    /**
+     * Returns the counter for the requests to the given function that
+     * are in progress. A gauge for the counter is registered when it
+     * is created.
+     *
+     * @param site the site
+     * @param function the web service function or script
+     * @return the counter
+     */
+    public static AtomicInteger inFlight(String site, String function) {
+        return inFlight.computeIfAbsent(
+            new CallKey(site, function, NONE, NONE), key -> {
+                var counter = new AtomicInteger();
+                Gauge.builder("moodle.requests.inflight", counter,
+                    AtomicInteger::get)
+                    .description("HTTP requests to Moodle in progress")
+                    .tag("site", site).tag("function", function)
+                    .register(registry);
+                return counter;
+            });
+    }
+
+    /**
+     * Records a single HTTP request to Moodle.
+     *
+     * @param site the site
+     * @param function the web service function or script
+     * @param nanos the duration
+     * @param result the decoded response (if any)
+     * @param failure the failure (if any)
+     */
+    public static void recordRequest(String site, String function,
+            long nanos, Object result, Throwable failure) {
+        var key = new CallKey(site, function, outcome(result, failure),
+            errorCode(result, failure));
+        requestTimers.computeIfAbsent(key,
+            k -> Timer.builder("moodle.requests")
+                .description("HTTP requests to Moodle")
+                .tag("site", k.site()).tag("function", k.function())
+                .tag("outcome", k.outcome())
+                .tag("errorcode", k.errorCode())
+                .publishPercentileHistogram().register(registry))
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records an invocation of a function, i.e. all attempts
+     * including the delays between them.
+     *
+     * @param site the site
+     * @param function the web service function or script
+     * @param nanos the duration
+     * @param attempts the number of attempts
+     * @param result the result (if any)
+     * @param failure the failure (if any)
+     */
+    public static void recordInvocation(String site, String function,
+            long nanos, int attempts, Object result, Throwable failure) {
+        var key = new CallKey(site, function, outcome(result, failure),
+            errorCode(result, failure));
+        invocationTimers.computeIfAbsent(key,
+            k -> Timer.builder("moodle.invocations")
+                .description("Invocations of Moodle functions,"
+                    + " including retries")
+                .tag("site", k.site()).tag("function", k.function())
+                .tag("outcome", k.outcome())
+                .tag("errorcode", k.errorCode())
+                .register(registry))
+            .record(nanos, TimeUnit.NANOSECONDS);
+        attemptSummaries.computeIfAbsent(
+            new CallKey(site, function, NONE, NONE),
+            k -> DistributionSummary.builder("moodle.invocations.attempts")
+                .description("Attempts made for an invocation")
+                .tag("site", k.site()).tag("function", k.function())
+                .serviceLevelObjectives(1, 2, 3, 4, 5).register(registry))
+            .record(attempts);
+    }
+
+    /* default */ static String outcome(Object result, Throwable failure) {
+        if (failure == null) {
+            return result instanceof MoodleErrorValues values
+                && values.getErrorcode() != null ? "moodle_error"
+                    : "success";
+        }
+        if (failure instanceof MoodleException) {
+            return "moodle_error";
+        }
+        if (failure instanceof CircuitOpenException) {
+            return "circuit_open";
+        }
+        if (failure instanceof LimitExceededException) {
+            return "rejected";
+        }
+        if (failure instanceof HttpTimeoutException) {
+            return "timeout";
+        }
+        return "io_error";
+    }
+
+    /* default */ static String errorCode(Object result,
+            Throwable failure) {
+        String code = null;
+        if (failure instanceof MoodleException e) {
+            code = e.errorCode();
+        } else if (failure == null
+            && result instanceof MoodleErrorValues values) {
+            code = values.getErrorcode();
+        }
+        return code == null ? NONE : code;
+    }
+
+    /**
+     * Registers the meters for a site's circuit breaker. The state
+     * is reported as gauge with values 0 (closed), 1 (open) and 2
+     * (half open).
+     *
+     * @param site the site
+     * @param breaker the breaker
+     */
+    public static void bind(String site, CircuitBreaker breaker) {
+        Gauge.builder("moodle.circuitbreaker.state", breaker,
+            b -> b.state().ordinal())
+            .description("State of the circuit breaker (0 = closed,"
+                + " 1 = open, 2 = half open)")
+            .tag("site", site).register(registry);
+        FunctionCounter.builder("moodle.circuitbreaker.rejected", breaker,
+            CircuitBreaker::rejectedCalls)
+            .description("Calls rejected by the circuit breaker")
+            .tag("site", site).register(registry);
+        breaker.setListener(
+            (from, to) -> Counter.builder("moodle.circuitbreaker.transitions")
+                .description("State changes of the circuit breaker")
+                .tag("site", site)
+                .tag("state", to.name().toLowerCase(Locale.ROOT))
+                .register(registry).increment());
+    }
+
+    /**
+     * Registers the meters for a site's concurrency limiter.
+     *
+     * @param site the site
+     * @param limiter the limiter
+     */
+    public static void bind(String site, ConcurrencyLimiter limiter) {
+        Gauge.builder("moodle.limiter.limit", limiter,
+            ConcurrencyLimiter::limit)
+            .description("Current limit for concurrent requests")
+            .tag("site", site).register(registry);
+        Gauge.builder("moodle.limiter.inflight", limiter,
+            ConcurrencyLimiter::inFlight)
+            .description("Requests in progress")
+            .tag("site", site).register(registry);
+        Gauge.builder("moodle.limiter.queued", limiter,
+            ConcurrencyLimiter::queued)
+            .description("Requests waiting for a permit")
+            .tag("site", site).register(registry);
+        FunctionCounter.builder("moodle.limiter.rejected", limiter,
+            ConcurrencyLimiter::rejectedCalls)
+            .description("Requests rejected by the limiter")
+            .tag("site", site).register(registry);
+    }
+
+    /**
+     * Registers the meters for a cache, i.e. counters for hits,
+     * misses and evictions and a gauge for the size.
+     *
+     * @param cache the cache
+     */
+    public static void bind(BoundedCache<?, ?> cache) {
+        bind(Tags.of("cache", cache.name()), cache);
+    }
+
+    /**
+     * Registers the meters for a site specific cache.
+     *
+     * @param site the site
+     * @param cache the cache
+     */
+    public static void bind(String site, BoundedCache<?, ?> cache) {
+        bind(Tags.of("cache", cache.name(), "site", site), cache);
+    }
+
+    private static void bind(Tags tags, BoundedCache<?, ?> cache) {
+        FunctionCounter.builder("moodle.cache.hits", cache,
+            BoundedCache::hits).description("Cache hits")
+            .tags(tags).register(registry);
+        FunctionCounter.builder("moodle.cache.misses", cache,
+            BoundedCache::misses).description("Cache misses")
+            .tags(tags).register(registry);
+        FunctionCounter.builder("moodle.cache.evictions", cache,
+            BoundedCache::evictions)
+            .description("Entries evicted because the cache was full")
+            .tags(tags).register(registry);
+        Gauge.builder("moodle.cache.size", cache, BoundedCache::size)
+            .description("Number of cache entries")
+            .tags(tags).register(registry);
+    }
+}
@@ -19,13 +19,20 @@
 package org.jdrupes.keycloak.moodleauth.moodle;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jdrupes.keycloak.moodleauth.moodle.actions.MoodleGetSiteInfo;
+import org.jdrupes.keycloak.moodleauth.moodle.ProfileCache.Profile;
 import org.jdrupes.keycloak.moodleauth.moodle.actions.MoodleUserByName;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleErrorValues;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleParticipantInfo;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleSiteInfo;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleTokens;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
@@ -39,56 +46,209 @@ import org.jdrupes.keycloak.moodleauth.moodle.service.Password;
  */
 public class MoodleServiceProvider implements MoodleService {
 
-    @SuppressWarnings({ "PMD.FieldNamingConventions",
-        "PMD.UnusedPrivateField", "unused" })
+    @SuppressWarnings("PMD.FieldNamingConventions")
     private static final Logger logger
         = Logger.getLogger(MoodleServiceProvider.class.getName());
 
+    /* default */ static final String SERVICE_PATH
+        = "webservice/rest/server.php";
+
+    /**
+     * Errors reported by `login/token.php` that are caused by the
+     * credentials or the state of the account. All other errors
+     * are considered to be caused by the state of the site.
+     */
+    private static final Set<String> CREDENTIAL_ERRORS = Set.of(
+        "invalidlogin", "noguest", "usernotconfirmed", "passwordisexpired",
+        "restoredaccountresetpassword");
+
+    private final MoodleSites sites;
+    private RetryPolicy retryPolicy = BackoffRetryPolicy.DEFAULT;
+    private Duration timeout;
+    private Duration profileTtl;
+
+    /**
+     * Instantiates a new moodle service provider that obtains the
+     * shared site resources from the given registry.
+     *
+     * @param sites the sites
+     */
+    public MoodleServiceProvider(MoodleSites sites) {
+        this.sites = sites;
+    }
+
+    /**
+     * Prepares the decoding of the results of all functions used,
+     * so that the first login doesn't have to wait for it
+     * (see {@link RestClient#warmUp(Class...)}).
+     */
+    public static void warmUp() {
+        RestClient.warmUp(MoodleTokens.class, MoodleUser[].class,
+            MoodleSiteInfo.class, MoodleParticipantInfo[].class,
+            MoodleErrorValues.class);
+    }
+
+    /**
+     * Sets the retry policy for the invocations made by the client.
+     *
+     * @param retryPolicy the retry policy
+     * @return the moodle service provider
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleServiceProvider setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time that {@link #connect} may take, including
+     * all retries.
+     *
+     * @param timeout the timeout or `null` for no limit
+     * @return the moodle service provider
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleServiceProvider setTimeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Sets the time that the profile information (user record and
+     * site info) is kept in the site's {@link ProfileCache}. If the
+     * profile is found in the cache, {@link #connect} returns after
+     * obtaining the token.
+     *
+     * @param profileTtl the time to live or `null` to disable caching
+     * @return the moodle service provider
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleServiceProvider setProfileTtl(Duration profileTtl) {
+        this.profileTtl = profileTtl;
+        return this;
+    }
+
     @Override
     @SuppressWarnings({ "PMD.AvoidCatchingGenericException",
         "PMD.EmptyCatchBlock" })
     public MoodleClient connect(String website, String username,
             Password password) throws IOException, MoodleAuthFailedException {
         // Request token
-        try {
-            String site = website;
-            if (!site.contains("://")) {
-                site = "https://" + site;
-            }
-            URI siteUri = new URI("https", "localhost", null, null, null)
-                .resolve(site);
-            if ("".equals(siteUri.getPath())) {
-                siteUri = siteUri.resolve(new URI(null, null, "/", null, null));
-            }
-            URI tokenUri = siteUri
-                .resolve(new URI(null, null, "login/token.php", null, null));
-            var restClient = new RestClient(tokenUri);
-            var tokens = restClient.invoke(MoodleTokens.class,
+        MoodleSite site = sites.site(website);
+        var restClient = new RestClient(site, site.resolve("login/token.php"))
+            .setRetryPolicy(retryPolicy)
+            .setDeadline(Optional.ofNullable(timeout)
+                .map(t -> Instant.now().plus(t)).orElse(null));
+        MoodleTokens tokens;
+        try (var span = MoodleTracing.start("moodle.token")) {
+            tokens = RestClient.await(restClient.invokeAsync(
+                MoodleServiceProvider::decodeTokens,
                 Map.of("username", username,
                     "password", new String(password.password()),
                     "service", "moodle_mobile_app"),
-                Collections.emptyMap());
+                Collections.emptyMap(), false));
             if (tokens.getErrorcode() != null) {
-                try {
-                    restClient.close();
-                } catch (Exception e) {
-                    // Was just trying to be nice
+                span.attribute("moodle.errorcode", tokens.getErrorcode());
+            }
+        }
+        if (tokens.getErrorcode() != null) {
+            try {
+                restClient.close();
+            } catch (Exception e) {
+                // Was just trying to be nice
+            }
+            throw new MoodleAuthFailedException(tokens.getError());
+        }
+        restClient.setUri(site.resolve(SERVICE_PATH));
+        restClient.setDefaultParams(serviceParams(tokens.getToken()));
+
+        // Use cached profile if available.
+        try (var span = MoodleTracing.start("moodle.profile")) {
+            if (profileTtl != null && profileTtl.isPositive()) {
+                var cached = site.profiles().get(username);
+                if (cached.isPresent()) {
+                    var refresh = cached.get().refreshDue();
+                    span.attribute("moodle.profile.cache",
+                        refresh ? "stale" : "hit");
+                    if (refresh) {
+                        refresh(site, username, tokens.getToken());
+                    }
+                    var profile = cached.get().profile();
+                    return new MoodleClientConnection(restClient,
+                        profile.user(), profile.siteInfo());
                 }
-                throw new MoodleAuthFailedException(tokens.getError());
+                span.attribute("moodle.profile.cache", "miss");
+            }
+            var profile
+                = RestClient.await(fetchProfile(restClient, username));
+            if (profileTtl != null && profileTtl.isPositive()) {
+                site.profiles().put(username, profile, profileTtl);
             }
-            URI serviceUri = siteUri.resolve(
-                new URI(null, null, "webservice/rest/server.php", null, null));
-            restClient.setUri(serviceUri);
-            restClient.setDefaultParams(Map.of("wstoken", tokens.getToken(),
-                "moodlewsrestformat", "json"));
-            MoodleUser muser
-                = new MoodleUserByName(restClient).invoke(username);
-            MoodleSiteInfo siteInfo
-                = new MoodleGetSiteInfo(restClient).invoke();
-            return new MoodleClientConnection(siteUri, restClient, muser,
-                siteInfo);
-        } catch (URISyntaxException e) {
-            throw new IllegalArgumentException(e);
+            return new MoodleClientConnection(restClient, profile.user(),
+                profile.siteInfo());
+        }
+    }
+
+    /**
+     * Decodes the response from `login/token.php`. Only the errors
+     * known to be caused by the credentials are returned with the
+     * tokens. All other errors (and responses without token) are
+     * thrown as {@link MoodleException}, so that they are handled by
+     * the retry policy and not taken as failed authentication.
+     */
+    private static MoodleTokens decodeTokens(InputStream body)
+            throws IOException {
+        var tokens = RestClient.decode(MoodleTokens.class, body);
+        if (tokens == null) {
+            throw new IOException("Empty response from login/token.php");
+        }
+        var errorCode = tokens.getErrorcode();
+        if (errorCode == null ? tokens.getToken() == null
+            : !CREDENTIAL_ERRORS.contains(errorCode)) {
+            throw new MoodleException(tokens);
         }
+        return tokens;
+    }
+
+    private static Map<String, Object> serviceParams(String token) {
+        return Map.of("wstoken", token, "moodlewsrestformat", "json");
+    }
+
+    /**
+     * Fetches the user. The site info is only needed if the user
+     * record lacks the first or last name. It is therefore left
+     * to the {@link MoodleClientConnection} to obtain it if required.
+     */
+    private static CompletableFuture<Profile> fetchProfile(
+            RestClient restClient, String username) {
+        return new MoodleUserByName(restClient).invokeAsync(username)
+            .thenApply(user -> new Profile(user, null));
+    }
+
+    /**
+     * Refreshes the cached profile in the background. Uses its own
+     * rest client, because the client used for the login is closed
+     * when the login completes.
+     */
+    @SuppressWarnings("PMD.GuardLogStatement")
+    private void refresh(MoodleSite site, String username, String token) {
+        if (!site.profiles().startRefresh(username)) {
+            return;
+        }
+        var ttl = profileTtl;
+        var restClient = new RestClient(site, site.resolve(SERVICE_PATH))
+            .setRetryPolicy(retryPolicy)
+            .setDefaultParams(serviceParams(token));
+        fetchProfile(restClient, username)
+            .whenComplete((profile, thrown) -> {
+                site.profiles().endRefresh(username);
+                if (thrown == null) {
+                    site.profiles().put(username, profile, ttl);
+                    return;
+                }
+                logger.log(Level.FINE, thrown,
+                    () -> "Refreshing profile of " + username + " failed: "
+                        + thrown.getMessage());
+            });
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the resources that are shared by all connections to a
+ * Moodle instance. Instances are obtained from {@link MoodleSites}.
+ */
+public class MoodleSite implements AutoCloseable {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(MoodleSite.class.getName());
+    private static final Duration SHUTDOWN_GRACE = Duration.ofSeconds(5);
+
+    private final URI siteUri;
+    private final HttpClient httpClient;
+    private final RetryBudget retryBudget = new RetryBudget(20);
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrencyLimiter limiter;
+    private final ProfileCache profiles;
+
+    /**
+     * Instantiates a new moodle site.
+     *
+     * @param siteUri the site uri
+     */
+    public MoodleSite(URI siteUri) {
+        this.siteUri = siteUri;
+        httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(20)).build();
+        circuitBreaker = new CircuitBreaker(name());
+        MoodleMetrics.bind(name(), circuitBreaker);
+        limiter = new ConcurrencyLimiter(name());
+        MoodleMetrics.bind(name(), limiter);
+        profiles = new ProfileCache(name(), 10_000);
+    }
+
+    /**
+     * Returns the site's base URI.
+     *
+     * @return the uri
+     */
+    public URI uri() {
+        return siteUri;
+    }
+
+    /**
+     * Returns the name of the site, i.e. its base URI without
+     * scheme and trailing slash. Used in logs and metrics.
+     *
+     * @return the name
+     */
+    public String name() {
+        var path = siteUri.getPath();
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return siteUri.getAuthority() + path;
+    }
+
+    /**
+     * Returns the URI of a resource relative to the site's base URI.
+     *
+     * @param path the path
+     * @return the uri
+     */
+    public URI resolve(String path) {
+        try {
+            return siteUri.resolve(new URI(null, null, path, null, null));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the HTTP client shared by all connections to the site.
+     * The client must not be closed by the caller.
+     *
+     * @return the http client
+     */
+    public HttpClient httpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Returns the retry budget shared by all clients for the site.
+     *
+     * @return the retry budget
+     */
+    public RetryBudget retryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Returns the circuit breaker for the site.
+     *
+     * @return the circuit breaker
+     */
+    public CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the limiter for concurrent requests to the site.
+     *
+     * @return the limiter
+     */
+    public ConcurrencyLimiter limiter() {
+        return limiter;
+    }
+
+    /**
+     * Returns the cache for the profiles of the site's users.
+     *
+     * @return the profile cache
+     */
+    public ProfileCache profiles() {
+        return profiles;
+    }
+
+    /**
+     * Shuts down the HTTP client. Requests that are in progress are
+     * given a short grace period to complete.
+     */
+    @Override
+    public void close() {
+        httpClient.shutdown();
+        try {
+            if (!httpClient.awaitTermination(SHUTDOWN_GRACE)) {
+                httpClient.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            httpClient.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logger.log(Level.FINE, () -> "Closed HTTP client for " + siteUri);
+    }
+
+    @Override
+    public String toString() {
+        return "MoodleSite [" + siteUri + "]";
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jdrupes.keycloak.moodleauth.cache.SharedStore;
+
+/**
+ * A registry for the {@link MoodleSite}s used by the authenticator
+ * and the user storage provider. The registry makes sure that all
+ * requests to the same Moodle instance share the site specific
+ * resources, most notably the HTTP client with its pool of keep-alive
+ * connections.
+ */
+public class MoodleSites implements AutoCloseable {
+
+    private static final Object SHARED_LOCK = new Object();
+    private static MoodleSites shared;
+    private static int sharedUsers;
+
+    private final Map<URI, MoodleSite> sites = new ConcurrentHashMap<>();
+    private volatile SharedStore profileStore;
+
+    /**
+     * Returns the registry shared by the providers of this plugin
+     * (authenticator and user storage), so that they use the same
+     * resources for a site (HTTP client, circuit breaker, limiter,
+     * retry budget and metrics). Each invocation must be balanced
+     * by an invocation of {@link #releaseShared()}.
+     *
+     * @return the moodle sites
+     */
+    public static MoodleSites acquireShared() {
+        synchronized (SHARED_LOCK) {
+            if (shared == null) {
+                shared = new MoodleSites();
+            }
+            sharedUsers += 1;
+            return shared;
+        }
+    }
+
+    /**
+     * Releases the registry obtained with {@link #acquireShared()}.
+     * The registry is closed when the last user has released it.
+     */
+    public static void releaseShared() {
+        synchronized (SHARED_LOCK) {
+            if (shared == null) {
+                return;
+            }
+            sharedUsers -= 1;
+            if (sharedUsers <= 0) {
+                shared.close();
+                shared = null;
+                sharedUsers = 0;
+            }
+        }
+    }
+
+    /**
+     * Sets the shared store for the profiles of all sites'
+     * users (see {@link ProfileCache#setSharedStore(SharedStore)}).
+     *
+     * @param profileStore the profile store
+     * @return the moodle sites
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleSites setProfileStore(SharedStore profileStore) {
+        this.profileStore = profileStore;
+        sites.values().forEach(s -> s.profiles().setSharedStore(profileStore));
+        return this;
+    }
+
+    /**
+     * Returns the site for the given website, creating it if
+     * necessary.
+     *
+     * @param website the website as configured
+     * @return the moodle site
+     */
+    public MoodleSite site(String website) {
+        return sites.computeIfAbsent(siteUri(website), uri -> {
+            var site = new MoodleSite(uri);
+            if (profileStore != null) {
+                site.profiles().setSharedStore(profileStore);
+            }
+            return site;
+        });
+    }
+
+    /**
+     * Normalizes the configured website to the site's base URI.
+     *
+     * @param website the website
+     * @return the uri
+     */
+    public static URI siteUri(String website) {
+        try {
+            String site = website;
+            if (!site.contains("://")) {
+                site = "https://" + site;
+            }
+            URI siteUri = new URI("https", "localhost", null, null, null)
+                .resolve(site);
+            if ("".equals(siteUri.getPath())) {
+                siteUri = siteUri.resolve(new URI(null, null, "/", null, null));
+            }
+            return siteUri;
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Closes all sites and removes them from the registry.
+     */
+    @Override
+    public void close() {
+        for (var it = sites.values().iterator(); it.hasNext();) {
+            var site = it.next();
+            it.remove();
+            site.close();
+        }
+    }
+}
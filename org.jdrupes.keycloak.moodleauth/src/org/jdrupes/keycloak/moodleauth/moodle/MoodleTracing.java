@@ -0,0 +1,206 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates spans for the phases of a login and the requests to Moodle.
+ * The spans are created with the OpenTelemetry API if it is available
+ * and the global OpenTelemetry instance has been set (e.g. by the
+ * OpenTelemetry Java agent). Else, all methods return a no-op span.
+ * Therefore, no OpenTelemetry types are used in this class' API.
+ */
+public final class MoodleTracing {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(MoodleTracing.class.getName());
+
+    private static final Backend BACKEND = backend();
+
+    /**
+     * A span. Spans must be closed.
+     */
+    public interface Span extends AutoCloseable {
+
+        /**
+         * Sets an attribute.
+         *
+         * @param key the key
+         * @param value the value
+         * @return the span
+         */
+        Span attribute(String key, String value);
+
+        /**
+         * Sets an attribute.
+         *
+         * @param key the key
+         * @param value the value
+         * @return the span
+         */
+        Span attribute(String key, long value);
+
+        /**
+         * Adds an event.
+         *
+         * @param name the name
+         * @param attributes alternating keys and values
+         * @return the span
+         */
+        Span event(String name, Object... attributes);
+
+        /**
+         * Marks the span as failed.
+         *
+         * @param cause the cause
+         * @return the span
+         */
+        Span failed(Throwable cause);
+
+        /**
+         * Passes the W3C trace context headers for this span
+         * to the consumer.
+         *
+         * @param headers the consumer for the headers
+         */
+        void inject(BiConsumer<String, String> headers);
+
+        /**
+         * Ends the span.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * The implementation of the spans.
+     */
+    /* default */ interface Backend {
+
+        /**
+         * Starts a span as child of the current span.
+         *
+         * @param name the name
+         * @param makeCurrent whether to make the span the current span
+         * (until closed)
+         * @return the span
+         */
+        Span start(String name, boolean makeCurrent);
+
+        /**
+         * Starts a client span as child of the given span.
+         *
+         * @param name the name
+         * @param parent the parent
+         * @return the span
+         */
+        Span startClient(String name, Span parent);
+    }
+
+    private static final Span NOOP = new Span() {
+
+        @Override
+        public Span attribute(String key, String value) {
+            return this;
+        }
+
+        @Override
+        public Span attribute(String key, long value) {
+            return this;
+        }
+
+        @Override
+        public Span event(String name, Object... attributes) {
+            return this;
+        }
+
+        @Override
+        public Span failed(Throwable cause) {
+            return this;
+        }
+
+        @Override
+        public void inject(BiConsumer<String, String> headers) {
+            // No context to propagate
+        }
+
+        @Override
+        public void close() {
+            // Nothing to end
+        }
+    };
+
+    private MoodleTracing() {
+    }
+
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private static Backend backend() {
+        try {
+            Class.forName("io.opentelemetry.api.GlobalOpenTelemetry");
+            return (Backend) Class
+                .forName(MoodleTracing.class.getPackageName()
+                    + ".OtelTracing")
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.log(Level.FINE, () -> "OpenTelemetry not available: "
+                + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts a span as child of the current span and makes it the
+     * current span until it is closed. The span must be closed by
+     * the thread that started it.
+     *
+     * @param name the name
+     * @return the span
+     */
+    public static Span start(String name) {
+        return BACKEND == null ? NOOP : BACKEND.start(name, true);
+    }
+
+    /**
+     * Starts a span as child of the current span without making it
+     * the current span. The span may be closed by any thread.
+     *
+     * @param name the name
+     * @return the span
+     */
+    public static Span startDetached(String name) {
+        return BACKEND == null ? NOOP : BACKEND.start(name, false);
+    }
+
+    /**
+     * Starts a client span as child of the given span. The span may
+     * be closed by any thread.
+     *
+     * @param name the name
+     * @param parent the parent
+     * @return the span
+     */
+    public static Span startClient(String name, Span parent) {
+        return BACKEND == null || parent == NOOP ? NOOP
+            : BACKEND.startClient(name, parent);
+    }
+}
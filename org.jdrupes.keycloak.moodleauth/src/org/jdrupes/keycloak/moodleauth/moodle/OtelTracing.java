@@ -0,0 +1,121 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import java.util.function.BiConsumer;
+
+/**
+ * The OpenTelemetry based implementation of the spans. Only loaded
+ * by {@link MoodleTracing} if the OpenTelemetry API is available.
+ */
+/* default */ final class OtelTracing implements MoodleTracing.Backend {
+
+    private final Tracer tracer
+        = GlobalOpenTelemetry.getTracer("org.jdrupes.keycloak.moodleauth");
+
+    @Override
+    public MoodleTracing.Span start(String name, boolean makeCurrent) {
+        var parent = Context.current();
+        var span = tracer.spanBuilder(name).setParent(parent).startSpan();
+        var context = parent.with(span);
+        return new OtelSpan(span, context,
+            makeCurrent ? context.makeCurrent() : null);
+    }
+
+    @Override
+    public MoodleTracing.Span startClient(String name,
+            MoodleTracing.Span parent) {
+        var parentContext = ((OtelSpan) parent).context;
+        var span = tracer.spanBuilder(name).setParent(parentContext)
+            .setSpanKind(SpanKind.CLIENT).startSpan();
+        return new OtelSpan(span, parentContext.with(span), null);
+    }
+
+    /**
+     * Wraps an OpenTelemetry span.
+     */
+    private static final class OtelSpan implements MoodleTracing.Span {
+        private final io.opentelemetry.api.trace.Span span;
+        private final Context context;
+        private final Scope scope;
+
+        private OtelSpan(io.opentelemetry.api.trace.Span span,
+                Context context, Scope scope) {
+            this.span = span;
+            this.context = context;
+            this.scope = scope;
+        }
+
+        @Override
+        public MoodleTracing.Span attribute(String key, String value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public MoodleTracing.Span attribute(String key, long value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public MoodleTracing.Span event(String name, Object... attributes) {
+            var builder = Attributes.builder();
+            for (int i = 0; i + 1 < attributes.length; i += 2) {
+                var key = String.valueOf(attributes[i]);
+                if (attributes[i + 1] instanceof Number number) {
+                    builder.put(key, number.longValue());
+                } else {
+                    builder.put(key, String.valueOf(attributes[i + 1]));
+                }
+            }
+            span.addEvent(name, builder.build());
+            return this;
+        }
+
+        @Override
+        public MoodleTracing.Span failed(Throwable cause) {
+            span.recordException(cause);
+            span.setStatus(StatusCode.ERROR, cause.getMessage());
+            return this;
+        }
+
+        @Override
+        public void inject(BiConsumer<String, String> headers) {
+            W3CTraceContextPropagator.getInstance().inject(context, headers,
+                (carrier, key, value) -> carrier.accept(key, value));
+        }
+
+        @Override
+        public void close() {
+            if (scope != null) {
+                scope.close();
+            }
+            span.end();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jdrupes.keycloak.moodleauth.cache.BoundedCache;
+import org.jdrupes.keycloak.moodleauth.cache.SharedStore;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleSiteInfo;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
+
+/**
+ * Caches the profile information (user record and site info) 
+ * of a site's users, indexed by username.
+ * 
+ * Entries that are used after three quarters of their time to live
+ * has elapsed are reported as due for a refresh (refresh-ahead). 
+ * The caller is expected to refresh the entry asynchronously, so that
+ * entries of active users usually never expire.
+ *
+ * If a {@link SharedStore} is set, the profiles are kept in the
+ * shared store (encoded as JSON) instead of the local caches.
+ */
+public class ProfileCache {
+
+    @SuppressWarnings("PMD.FieldNamingConventions")
+    private static final Logger logger
+        = Logger.getLogger(ProfileCache.class.getName());
+
+    private final String site;
+    private SharedStore shared;
+    private final BoundedCache<String, Profile> byName;
+    private final Map<String, Boolean> refreshing = new ConcurrentHashMap<>();
+
+    /**
+     * The cached information about a user.
+     *
+     * @param user the user
+     * @param siteInfo the site info or `null` if it hasn't been
+     * obtained (see {@link MoodleClientConnection#siteInfo()})
+     */
+    public record Profile(MoodleUser user, MoodleSiteInfo siteInfo) {
+    }
+
+    /**
+     * The representation of a profile in the shared store.
+     *
+     * @param created the creation time (epoch millis)
+     * @param expires the expiry time (epoch millis)
+     * @param user the user
+     * @param siteInfo the site info
+     */
+    private record Stored(long created, long expires, MoodleUser user,
+            MoodleSiteInfo siteInfo) {
+    }
+
+    /**
+     * A profile looked up in the cache.
+     *
+     * @param profile the profile
+     * @param refreshDue whether the profile should be refreshed
+     */
+    public record Lookup(Profile profile, boolean refreshDue) {
+    }
+
+    /**
+     * Instantiates a new profile cache.
+     *
+     * @param site the name of the site
+     * @param maxSize the maximum number of entries
+     */
+    public ProfileCache(String site, int maxSize) {
+        this.site = site;
+        byName = new BoundedCache<>("profiles", maxSize);
+        MoodleMetrics.bind(site, byName);
+    }
+
+    /**
+     * Sets the shared store. If set, the local caches are no longer
+     * used for the entries, but their hits and misses are still
+     * counted.
+     *
+     * @param shared the shared store or `null`
+     * @return the profile cache
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public ProfileCache setSharedStore(SharedStore shared) {
+        this.shared = shared;
+        byName.clear();
+        return this;
+    }
+
+    /**
+     * Looks up the profile of the user with the given name.
+     *
+     * @param username the username
+     * @return the result
+     */
+    public Optional<Lookup> get(String username) {
+        if (shared != null) {
+            var result = sharedLookup(username);
+            byName.recordLookup(result.isPresent());
+            return result;
+        }
+        return byName.getEntry(key(username)).map(e -> lookup(e.value(),
+            e.created(), e.expires()));
+    }
+
+    private Lookup lookup(Profile profile, Instant created, Instant expires) {
+        var ttl = Duration.between(created, expires);
+        var refreshAt = created.plus(ttl.multipliedBy(3).dividedBy(4));
+        return new Lookup(profile, !Instant.now().isBefore(refreshAt));
+    }
+
+    @SuppressWarnings("PMD.UseVarargs")
+    private Optional<Lookup> decode(byte[] encoded) {
+        try {
+            var stored = RestClient.mapper.readValue(encoded, Stored.class);
+            return Optional.of(lookup(
+                new Profile(stored.user(), stored.siteInfo()),
+                Instant.ofEpochMilli(stored.created()),
+                Instant.ofEpochMilli(stored.expires())));
+        } catch (IOException e) {
+            logger.log(Level.FINE, e,
+                () -> "Cannot decode cached profile: " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds or replaces a profile.
+     *
+     * @param username the username
+     * @param profile the profile
+     * @param ttl the time to live
+     */
+    public void put(String username, Profile profile, Duration ttl) {
+        if (shared == null) {
+            byName.put(key(username), profile, ttl);
+            return;
+        }
+        var now = Instant.now();
+        byte[] encoded;
+        try {
+            encoded = RestClient.mapper.writeValueAsBytes(new Stored(
+                now.toEpochMilli(), now.plus(ttl).toEpochMilli(),
+                profile.user(), profile.siteInfo()));
+        } catch (IOException e) {
+            logger.log(Level.FINE, e,
+                () -> "Cannot encode profile: " + e.getMessage());
+            return;
+        }
+        shared.put(sharedKey(username), encoded, ttl);
+    }
+
+    /**
+     * Marks the start of a refresh of the user's profile. Returns
+     * `false` if a refresh is already in progress.
+     *
+     * @param username the username
+     * @return true, if the refresh should be made
+     */
+    public boolean startRefresh(String username) {
+        return refreshing.putIfAbsent(key(username), Boolean.TRUE) == null;
+    }
+
+    /**
+     * Marks the end of a refresh of the user's profile.
+     *
+     * @param username the username
+     */
+    public void endRefresh(String username) {
+        refreshing.remove(key(username));
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private Optional<Lookup> sharedLookup(String username) {
+        return shared.get(sharedKey(username)).flatMap(this::decode);
+    }
+
+    private String sharedKey(String username) {
+        return site + "|" + key(username);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleErrorValues;
+
+/**
+ * Decodes only the given top-level fields of an object returned by
+ * Moodle. Values of other fields are skipped by the parser without
+ * being converted. Once all fields have been found, parsing stops
+ * and the rest of the response is discarded without being tokenized.
+ * The rest is still read, so that the connection can be reused.
+ *
+ * If the response is an error object, a {@link MoodleException}
+ * is thrown.
+ *
+ * @param <T> the result type
+ */
+public class ProjectionDecoder<T> implements RestClient.BodyDecoder<T> {
+
+    private static final Set<String> ERROR_FIELDS
+        = Set.of("exception", "errorcode", "message", "error");
+
+    private final Class<T> resultType;
+    private final Set<String> fields;
+
+    /**
+     * Instantiates a new projection decoder.
+     *
+     * @param resultType the result type
+     * @param fields the fields to decode
+     */
+    public ProjectionDecoder(Class<T> resultType, String... fields) {
+        this.resultType = resultType;
+        this.fields = Set.of(fields);
+    }
+
+    @Override
+    public T decode(InputStream body) throws IOException {
+        if (body == null) {
+            return null;
+        }
+        ObjectNode found = RestClient.mapper.createObjectNode();
+        try (JsonParser parser = RestClient.mapper.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unparsable result: object expected");
+            }
+            int missing = fields.size();
+            while (missing > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                parser.nextToken();
+                if (fields.contains(name)) {
+                    found.set(name, parser.readValueAsTree());
+                    missing -= 1;
+                } else if (ERROR_FIELDS.contains(name)) {
+                    found.set(name, parser.readValueAsTree());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+        if (found.has("exception")) {
+            throw new MoodleException(RestClient
+                .reader(MoodleErrorValues.class).readValue(found));
+        }
+        return RestClient.reader(resultType).readValue(found);
+    }
+}
@@ -18,33 +18,36 @@
 
 package org.jdrupes.keycloak.moodleauth.moodle;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PushbackReader;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.nio.charset.Charset;
 import java.time.Duration;
-import java.util.AbstractMap;
-import java.util.Collection;
+import java.time.Instant;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleErrorValues;
-import org.jdrupes.keycloak.moodleauth.moodle.service.QueryValueEncoder;
 
 /**
  * A class for invoking REST services.
@@ -55,32 +58,93 @@ public class RestClient implements AutoCloseable {
     @SuppressWarnings("PMD.FieldNamingConventions")
     private static final Logger logger
         = Logger.getLogger(RestClient.class.getName());
+    private static final String BLACKBIRD
+        = "com.fasterxml.jackson.module.blackbird.BlackbirdModule";
     protected static final ObjectMapper mapper = new ObjectMapper()
         .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final Map<Class<?>, ObjectReader> readers
+        = new ConcurrentHashMap<>();
 
-    private HttpClient httpClient;
-    private Map<String, Object> defaultParams;
+    static {
+        // Use generated accessors if Blackbird is available.
+        try {
+            mapper.registerModule((Module) Class.forName(BLACKBIRD)
+                .getDeclaredConstructor().newInstance());
+            logger.fine("Using Jackson Blackbird module.");
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.log(Level.FINE, () -> "Jackson Blackbird module not"
+                + " available: " + e.getMessage());
+        }
+    }
+
+    private volatile HttpClient httpClient;
+    private String encodedDefaults;
     private URI uri;
+    private RetryPolicy retryPolicy = BackoffRetryPolicy.DEFAULT;
+    private RetryBudget retryBudget;
+    private CircuitBreaker circuitBreaker;
+    private ConcurrencyLimiter limiter;
+    private String siteName;
+    private Instant deadline;
 
     /**
-     * Instantiates a new rest client.
+     * Decodes the body of a response.
+     *
+     * @param <T> the result type
+     */
+    @FunctionalInterface
+    public interface BodyDecoder<T> {
+
+        /**
+         * Decodes the body.
+         *
+         * @param body the body
+         * @return the result
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        T decode(InputStream body) throws IOException;
+    }
+
+    /**
+     * Instantiates a new rest client. The HTTP client is usually
+     * shared with other rest clients (see {@link MoodleSite#httpClient()})
+     * and therefore not closed by {@link #close()}.
      *
+     * @param httpClient the http client to use
      * @param uri the uri
      * @param defaultParams the default params
      */
-    public RestClient(URI uri, Map<String, Object> defaultParams) {
-        createHttpClient();
+    public RestClient(HttpClient httpClient, URI uri,
+            Map<String, Object> defaultParams) {
+        this.httpClient = httpClient;
         this.uri = uri;
-        this.defaultParams = new HashMap<>(defaultParams);
+        encodedDefaults = FormEncoder.encode(defaultParams);
+    }
+
+    /**
+     * Instantiates a new rest client that uses the resources
+     * shared by all clients for the site, i.e. its HTTP client,
+     * retry budget, circuit breaker and concurrency limiter.
+     *
+     * @param site the site
+     * @param uri the uri
+     */
+    public RestClient(MoodleSite site, URI uri) {
+        this(site.httpClient(), uri, Collections.emptyMap());
+        retryBudget = site.retryBudget();
+        circuitBreaker = site.circuitBreaker();
+        limiter = site.limiter();
+        siteName = site.name();
     }
 
     /**
      * Instantiates a new rest client.
      *
+     * @param httpClient the http client to use
      * @param uri the uri
      */
-    public RestClient(URI uri) {
-        this(uri, Collections.emptyMap());
+    public RestClient(HttpClient httpClient, URI uri) {
+        this(httpClient, uri, Collections.emptyMap());
     }
 
     /**
@@ -100,25 +164,131 @@ public class RestClient implements AutoCloseable {
     }
 
     /**
-     * Sets the default params.
+     * Sets the default params. The params are encoded once
+     * and the result is reused for all subsequent invocations.
      *
      * @param params the params
      * @return the rest client
      */
     @SuppressWarnings("PMD.LinguisticNaming")
     public RestClient setDefaultParams(Map<String, Object> params) {
-        this.defaultParams = new HashMap<>(params);
+        encodedDefaults = FormEncoder.encode(params);
+        return this;
+    }
+
+    /**
+     * Sets the retry policy. Defaults to
+     * {@link BackoffRetryPolicy#DEFAULT}.
+     *
+     * @param retryPolicy the retry policy
+     * @return the rest client
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public RestClient setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the retry budget. If set, retries are only made if
+     * the budget permits them. The budget is usually shared
+     * by all clients for a site (see {@link MoodleSite#retryBudget()}).
+     *
+     * @param retryBudget the retry budget
+     * @return the rest client
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public RestClient setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
+    /**
+     * Sets the circuit breaker. If set, requests are only sent
+     * if the breaker permits them.
+     *
+     * @param circuitBreaker the circuit breaker
+     * @return the rest client
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public RestClient setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
         return this;
     }
 
+    /**
+     * Sets the concurrency limiter. If set, requests are only sent
+     * when the limiter grants a permit. Waiting for the permit
+     * ends at the deadline (see {@link #setDeadline(Instant)}).
+     *
+     * @param limiter the limiter
+     * @return the rest client
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public RestClient setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * Sets a deadline for all invocations. Requests time out when
+     * the deadline is reached and no retries are scheduled that would
+     * start after the deadline.
+     *
+     * @param deadline the deadline or `null`
+     * @return the rest client
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public RestClient setDeadline(Instant deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Creates a new rest client with the same settings as this one,
+     * i.e. the same HTTP client, uri, default params, retry policy,
+     * retry budget, circuit breaker, limiter and deadline. The copy
+     * is not affected by closing this client.
+     *
+     * @return the rest client
+     */
+    public RestClient copy() {
+        var copy = new RestClient(httpClient, uri);
+        copy.encodedDefaults = encodedDefaults;
+        copy.retryPolicy = retryPolicy;
+        copy.retryBudget = retryBudget;
+        copy.circuitBreaker = circuitBreaker;
+        copy.limiter = limiter;
+        copy.siteName = siteName;
+        copy.deadline = deadline;
+        return copy;
+    }
+
+    /**
+     * Releases the reference to the HTTP client. The HTTP client
+     * itself is owned by the {@link MoodleSite} and stays open.
+     * Subsequent invocations fail with an {@link IOException}
+     * and pending invocations are not retried.
+     */
     @Override
     public void close() throws Exception {
         httpClient = null;
     }
 
-    private void createHttpClient() {
-        this.httpClient = HttpClient.newBuilder()
-            .connectTimeout(Duration.ofSeconds(20)).build();
+    /**
+     * Invoke a request with the parameters specified. The request
+     * is assumed to be idempotent.
+     *
+     * @param <T> the generic type
+     * @param resultType the result type
+     * @param queryParams parameters to be added to the query
+     * @param data to be send in the body
+     * @return the result
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public <T> T invoke(Class<T> resultType, Map<String, Object> queryParams,
+            Map<String, Object> data) throws IOException {
+        return await(invokeAsync(resultType, queryParams, data, true));
     }
 
     /**
@@ -128,152 +298,592 @@ public class RestClient implements AutoCloseable {
      * @param resultType the result type
      * @param queryParams parameters to be added to the query
      * @param data to be send in the body
+     * @param idempotent whether the request may be repeated
+     * after it may have been (partially) processed by the server
      * @return the result
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    @SuppressWarnings({ "PMD.GuardLogStatement", "PMD.AvoidDuplicateLiterals",
-        "PMD.AvoidRethrowingException" })
     public <T> T invoke(Class<T> resultType, Map<String, Object> queryParams,
-            Map<String, Object> data) throws IOException {
-        try {
-            var query = Stream.concat(defaultParams.entrySet().stream(),
-                queryParams.entrySet().stream())
-                .map(e -> URLEncoder.encode(e.getKey(),
-                    Charset.forName("utf-8")) + "="
-                    + URLEncoder.encode(e.getValue().toString(),
-                        Charset.forName("utf-8")))
-                .collect(Collectors.joining("&"));
-            var formData = encodeData(data);
-            for (int attempt = 0; attempt < 10; attempt++) {
-                try {
-                    return doInvoke(resultType, query, formData);
-                } catch (MoodleException e) {
-                    if ("ex_unabletolock".equals(e.getMessage())) {
-                        logger.log(Level.FINE, e,
-                            () -> "Retrying due to: " + e.getMessage()
-                                + " with query params " + queryParams);
-                        continue;
-                    }
-                    throw e;
-                } catch (IOException e) {
-                    logger.log(Level.FINE, e,
-                        () -> "Reconnecting due to: " + e.getMessage());
-                }
-                createHttpClient();
-                Thread.sleep(1000);
+            Map<String, Object> data, boolean idempotent) throws IOException {
+        return await(invokeAsync(resultType, queryParams, data, idempotent));
+    }
+
+    /**
+     * Invoke a request with the parameters specified without blocking
+     * the invoking thread. The request is assumed to be idempotent.
+     *
+     * @param <T> the generic type
+     * @param resultType the result type
+     * @param queryParams parameters to be added to the query
+     * @param data to be send in the body
+     * @return the future result
+     */
+    public <T> CompletableFuture<T> invokeAsync(Class<T> resultType,
+            Map<String, Object> queryParams, Map<String, Object> data) {
+        return invokeAsync(resultType, queryParams, data, true);
+    }
+
+    /**
+     * Invoke a request with the parameters specified without blocking
+     * the invoking thread. Failed attempts are retried as decided by
+     * the {@link RetryPolicy}, within the limits of the deadline
+     * and the {@link RetryBudget}. Retries are scheduled, i.e. no
+     * thread is blocked while waiting for the next attempt.
+     *
+     * @param <T> the generic type
+     * @param resultType the result type
+     * @param queryParams parameters to be added to the query
+     * @param data to be send in the body
+     * @param idempotent whether the request may be repeated
+     * after it may have been (partially) processed by the server
+     * @return the future result
+     */
+    public <T> CompletableFuture<T> invokeAsync(Class<T> resultType,
+            Map<String, Object> queryParams, Map<String, Object> data,
+            boolean idempotent) {
+        return invokeAsync(body -> decode(resultType, body), queryParams,
+            data, idempotent);
+    }
+
+    /**
+     * Invoke a request that returns a (potentially large) array
+     * without blocking the invoking thread. The elements of the array
+     * are decoded one by one while the response is being received and
+     * passed to the consumer. The memory used therefore doesn't
+     * depend on the size of the response.
+     *
+     * If `arrayField` is `null`, the response must be an array. Else
+     * the response must be an object, and the elements of the array
+     * that is the value of the given field are passed to the consumer.
+     * Other fields of the object are ignored.
+     *
+     * The consumer is invoked from a thread of the HTTP client. As
+     * elements may already have been passed to the consumer when an
+     * error occurs, the request is only retried if it has not been
+     * processed by the server (see {@link RetryPolicy}).
+     *
+     * This is meant for responses whose size is not bounded by the
+     * request. Currently, there is no such request, the user import
+     * requests windows of bounded size and uses
+     * {@link #invokeAsync(Class, Map, Map, boolean)}, which can
+     * be retried.
+     *
+     * @param <E> the element type
+     * @param elementType the element type
+     * @param arrayField the field with the array or `null`
+     * @param queryParams parameters to be added to the query
+     * @param data to be send in the body
+     * @param consumer the consumer for the elements
+     * @return the future number of elements
+     */
+    public <E> CompletableFuture<Long> invokeStreaming(Class<E> elementType,
+            String arrayField, Map<String, Object> queryParams,
+            Map<String, Object> data, Consumer<? super E> consumer) {
+        return invokeAsync(body -> decodeStreaming(elementType, arrayField,
+            body, consumer), queryParams, data, false);
+    }
+
+    /**
+     * Invoke a request with the parameters specified without blocking
+     * the invoking thread, using the given decoder for the response.
+     *
+     * @param <T> the generic type
+     * @param decoder the decoder
+     * @param queryParams parameters to be added to the query
+     * @param data to be send in the body
+     * @param idempotent whether the request may be repeated
+     * after it may have been (partially) processed by the server
+     * @return the future result
+     */
+    public <T> CompletableFuture<T> invokeAsync(BodyDecoder<T> decoder,
+            Map<String, Object> queryParams, Map<String, Object> data,
+            boolean idempotent) {
+        var query = FormEncoder.encode(encodedDefaults, queryParams);
+        var formData = FormEncoder.encode(data);
+        if (retryBudget != null) {
+            retryBudget.deposit();
+        }
+        var call = new Call(site(), function(queryParams),
+            query.length() + formData.length());
+        return attempt(decoder, call, query, formData, idempotent, 1)
+            .whenComplete((result, thrown) -> {
+                var cause = thrown == null ? null : unwrap(thrown);
+                MoodleMetrics.recordInvocation(call.site, call.function,
+                    System.nanoTime() - call.started, call.attempts, result,
+                    cause);
+                call.end(result, cause);
+            });
+    }
+
+    /**
+     * The information about an invocation used for the metrics,
+     * the tracing and the flight recorder.
+     */
+    private static final class Call {
+        private final String site;
+        private final String function;
+        private final long started = System.nanoTime();
+        private final MoodleTracing.Span span;
+        private final MoodleCallEvent event = new MoodleCallEvent();
+        private final int requestBytes;
+        private final AtomicLong responseBytes = new AtomicLong();
+        private volatile int attempts;
+        private volatile int status;
+
+        private Call(String site, String function, int requestBytes) {
+            this.site = site;
+            this.function = function;
+            this.requestBytes = requestBytes;
+            event.begin();
+            span = MoodleTracing.startDetached("moodle.invoke " + function)
+                .attribute("moodle.site", site)
+                .attribute("moodle.function", function);
+        }
+
+        private void end(Object result, Throwable cause) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.site = site;
+                event.function = function;
+                event.attempts = attempts;
+                event.status = status;
+                event.requestBytes = requestBytes;
+                event.responseBytes = responseBytes.get();
+                event.outcome = MoodleMetrics.outcome(result, cause);
+                event.errorCode = MoodleMetrics.errorCode(result, cause);
+                event.commit();
             }
-            // Final attempt
-            return doInvoke(resultType, query, formData);
+            span.attribute("moodle.attempts", attempts)
+                .attribute("moodle.outcome",
+                    MoodleMetrics.outcome(result, cause))
+                .attribute("moodle.errorcode",
+                    MoodleMetrics.errorCode(result, cause));
+            if (cause != null) {
+                span.failed(cause);
+            }
+            span.close();
+        }
+    }
+
+    private String site() {
+        return siteName == null ? uri.getAuthority() : siteName;
+    }
+
+    /**
+     * Returns the web service function invoked or, for scripts
+     * such as `login/token.php`, the name of the script.
+     */
+    private String function(Map<String, Object> queryParams) {
+        var function = queryParams.get("wsfunction");
+        if (function != null) {
+            return function.toString();
+        }
+        var path = uri.getPath();
+        return path == null ? "" : path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @SuppressWarnings({ "PMD.GuardLogStatement", "PMD.AvoidDuplicateLiterals" })
+    private <T> CompletableFuture<T> attempt(BodyDecoder<T> decoder,
+            Call call, String query, String formData, boolean idempotent,
+            int attempt) {
+        call.attempts = attempt;
+        return doInvoke(decoder, call, query, formData).exceptionallyCompose(
+            thrown -> {
+                var cause = unwrap(thrown);
+                Duration delay
+                    = retryPolicy.retryDelay(attempt, cause, idempotent);
+                if (delay == null || httpClient == null || deadline != null
+                    && Instant.now().plus(delay).isAfter(deadline)) {
+                    return CompletableFuture.failedFuture(cause);
+                }
+                if (retryBudget != null && !retryBudget.tryWithdraw()) {
+                    logger.log(Level.FINE, () -> "Retry budget exhausted, "
+                        + "not retrying after: " + cause.getMessage());
+                    return CompletableFuture.failedFuture(cause);
+                }
+                call.span.event("moodle.retry", "moodle.attempt", attempt,
+                    "moodle.retry.delay_ms", delay.toMillis(),
+                    "exception.type", cause.getClass().getName());
+                logger.log(Level.FINE, cause, () -> "Retrying "
+                    + call.function + " in " + delay.toMillis()
+                    + "ms due to: " + cause.getMessage());
+                return CompletableFuture.supplyAsync(() -> null,
+                    CompletableFuture.delayedExecutor(delay.toMillis(),
+                        TimeUnit.MILLISECONDS))
+                    .thenCompose(v -> attempt(decoder, call, query, formData,
+                        idempotent, attempt + 1));
+            });
+    }
+
+    /**
+     * Waits for the completion of a future obtained from one of the
+     * asynchronous methods and returns its result. {@link IOException}s
+     * and {@link RuntimeException}s that caused the future to fail are
+     * re-thrown unwrapped.
+     *
+     * @param <T> the generic type
+     * @param future the future
+     * @return the result
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @SuppressWarnings("PMD.PreserveStackTrace")
+    public static <T> T await(CompletableFuture<T> future)
+            throws IOException {
+        try {
+            return future.get();
         } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
             throw new IOException(e);
+        } catch (ExecutionException e) {
+            var cause = unwrap(e);
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (cause instanceof RuntimeException rte) {
+                throw rte;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the reader for the given type. Readers are created once
+     * and reused, so the deserializers are only looked up when a type
+     * is decoded for the first time.
+     *
+     * @param type the type
+     * @return the object reader
+     */
+    /* default */ static ObjectReader reader(Class<?> type) {
+        return readers.computeIfAbsent(type, mapper::readerFor);
+    }
+
+    /**
+     * Creates the readers for the given types and decodes an empty
+     * value of each type. This makes Jackson introspect the types
+     * and build its deserializers in advance.
+     *
+     * @param types the types
+     */
+    @SuppressWarnings("PMD.EmptyCatchBlock")
+    public static void warmUp(Class<?>... types) {
+        for (var type : types) {
+            try {
+                reader(type).readValue(type.isArray() ? "[]" : "{}");
+            } catch (IOException e) {
+                // Only the side effect matters.
+            }
+        }
+    }
+
+    /**
+     * Returns the cause of a failure reported by a future, i.e.
+     * removes any {@link CompletionException}s or
+     * {@link ExecutionException}s that wrap the cause.
+     *
+     * @param thrown the thrown
+     * @return the throwable
+     */
+    public static Throwable unwrap(Throwable thrown) {
+        Throwable cause = thrown;
+        while ((cause instanceof CompletionException
+            || cause instanceof ExecutionException)
+            && cause.getCause() != null) {
+            cause = cause.getCause();
         }
+        return cause;
     }
 
     /**
      * Encodes the map following the non-standard conventions of
-     * PHP's `http_build_query`
+     * PHP's `http_build_query`.
      *
      * @param data the data
      * @return the query string
-     * @see https://github.com/pear/PHP_Compat/blob/master/PHP/Compat/Function/http_build_query.php
+     * @see FormEncoder
      */
     public static String encodeData(Map<String, Object> data) {
-        return encodeStream(data.entrySet().stream(), null);
+        return FormEncoder.encode(data);
     }
 
     /**
-     * Used by {@link #encodeData(Map)} and recursively invoked as required.
+     * Returns the URI with the given (already encoded) query.
      *
-     * @param data a stream of entries
-     * @param keyBase the key base of `null` for the top-lebel invocation 
-     * @return the query string
+     * @param uri the base URI
+     * @param query the query
+     * @return the URI
      */
-    @SuppressWarnings({ "unchecked", "PMD.CognitiveComplexity" })
-    public static String encodeStream(Stream<Map.Entry<String, Object>> data,
-            String keyBase) {
-        // Iterate over all entries in stream.
-        return data.map(e -> {
-            // Use entry's key as result's key or as "index" of existing key.
-            String key;
-            if (keyBase == null) {
-                key = e.getKey();
-            } else {
-                key = keyBase + '[' + e.getKey() + ']';
-            }
-            if (e.getValue() instanceof Map) {
-                return encodeStream(
-                    ((Map<String, Object>) e.getValue()).entrySet().stream(),
-                    key);
-            }
-            Stream<Object> valueStream = null;
-            if (e.getValue().getClass().isArray()) {
-                valueStream = Stream.of((Object[]) e.getValue());
-            } else if (e.getValue() instanceof Collection) {
-                valueStream = ((Collection<Object>) e.getValue()).stream();
-            }
-            if (valueStream != null) {
-                AtomicInteger counter = new AtomicInteger();
-                return encodeStream(valueStream.map(
-                    v -> new AbstractMap.SimpleEntry<>(
-                        Integer.toString(counter.getAndIncrement()), v)),
-                    key);
-            }
-            StringBuilder res = new StringBuilder()
-                .append(URLEncoder.encode(key, Charset.forName("utf-8")))
-                .append('=');
-            if (e.getValue() instanceof QueryValueEncoder) {
-                res.append(
-                    ((QueryValueEncoder) e.getValue()).asQueryValue());
-            } else {
-                res.append(URLEncoder.encode(e.getValue().toString(),
-                    Charset.forName("utf-8")));
-            }
-            return res.toString();
-        }).collect(Collectors.joining("&"));
-    }
-
-    @SuppressWarnings("PMD.AvoidLiteralsInIfCondition")
-    private <T> T doInvoke(Class<T> resultType, String query, String formData)
-            throws IOException, InterruptedException {
-        URI fullUri;
+    /* default */ static URI requestUri(URI uri, String query) {
         try {
-            fullUri = new URI(uri.getScheme(), uri.getAuthority(),
+            var baseUri = new URI(uri.getScheme(), uri.getAuthority(),
                 uri.getPath(), null, null);
-            fullUri = new URI(fullUri.toString()
+            return new URI(baseUri.toString()
                 + (query == null ? "" : "?" + query)
                 + (uri.getRawFragment() == null ? ""
                     : "#" + uri.getRawFragment()));
         } catch (URISyntaxException e) {
             throw new IllegalArgumentException(e);
         }
-        HttpRequest request = HttpRequest.newBuilder().uri(fullUri)
+    }
+
+    private <T> CompletableFuture<T> doInvoke(BodyDecoder<T> decoder,
+            Call call, String query, String formData) {
+        var builder = HttpRequest.newBuilder().uri(requestUri(uri, query))
             .header("Content-Type", "application/x-www-form-urlencoded")
-            .POST(HttpRequest.BodyPublishers.ofString(formData)).build();
+            .POST(HttpRequest.BodyPublishers.ofString(formData));
+        if (httpClient == null) {
+            return CompletableFuture.failedFuture(closed());
+        }
+        if (limiter == null) {
+            return send(builder, decoder, call, null);
+        }
+        return limiter.acquire(deadline)
+            .thenCompose(permit -> send(builder, decoder, call, permit));
+    }
+
+    private <T> CompletableFuture<T> send(HttpRequest.Builder builder,
+            BodyDecoder<T> decoder, Call call,
+            ConcurrencyLimiter.Permit permit) {
+        if (deadline != null) {
+            var remaining = Duration.between(Instant.now(), deadline);
+            if (remaining.isNegative() || remaining.isZero()) {
+                release(permit);
+                return CompletableFuture.failedFuture(
+                    new HttpTimeoutException("Deadline exceeded"));
+            }
+            builder.timeout(remaining);
+        }
+        var client = httpClient;
+        if (client == null) {
+            release(permit);
+            return CompletableFuture.failedFuture(closed());
+        }
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            release(permit);
+            return CompletableFuture.failedFuture(new CircuitOpenException(
+                "Circuit breaker open for " + uri.getAuthority()));
+        }
+
+        // The query isn't recorded, it may contain tokens or passwords.
+        var span = MoodleTracing.startClient("POST " + call.function,
+            call.span).attribute("http.request.method", "POST")
+            .attribute("server.address", uri.getHost())
+            .attribute("server.port", port())
+            .attribute("moodle.site", call.site)
+            .attribute("moodle.function", call.function)
+            .attribute("moodle.attempt", call.attempts);
+        span.inject(builder::header);
+        HttpRequest request = builder.build();
 
         // Execute and get the response.
-        HttpResponse<InputStream> response
-            = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.body() == null) {
+        var inFlight = MoodleMetrics.inFlight(call.site, call.function);
+        inFlight.incrementAndGet();
+        long started = System.nanoTime();
+        return client.sendAsync(request, BodyHandlers.ofInputStream())
+            .thenApply(response -> {
+                span.attribute("http.response.status_code",
+                    response.statusCode());
+                call.status = response.statusCode();
+                var body = call.event.isEnabled()
+                    ? new CountingInputStream(response.body(),
+                        call.responseBytes)
+                    : response.body();
+                try {
+                    return decoder.decode(body);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }).whenComplete((r, thrown) -> {
+                var duration = Duration.ofNanos(System.nanoTime() - started);
+                var cause = thrown == null ? null : unwrap(thrown);
+                inFlight.decrementAndGet();
+                MoodleMetrics.recordRequest(call.site, call.function,
+                    duration.toNanos(), r, cause);
+                endSpan(span, r, cause);
+                if (circuitBreaker != null) {
+                    circuitBreaker.record(duration, cause);
+                }
+                if (permit != null) {
+                    permit.release(duration, cause);
+                }
+            });
+    }
+
+    /**
+     * Counts the bytes read from the body of a response.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        private CountingInputStream(InputStream body, AtomicLong count) {
+            super(body);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count.incrementAndGet();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                count.addAndGet(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long bytes) throws IOException {
+            long result = super.skip(bytes);
+            count.addAndGet(result);
+            return result;
+        }
+    }
+
+    private int port() {
+        if (uri.getPort() >= 0) {
+            return uri.getPort();
+        }
+        return "http".equalsIgnoreCase(uri.getScheme()) ? 80 : 443;
+    }
+
+    private static void endSpan(MoodleTracing.Span span, Object result,
+            Throwable cause) {
+        var errorCode = MoodleMetrics.errorCode(result, cause);
+        if (!"none".equals(errorCode)) {
+            span.attribute("moodle.errorcode", errorCode);
+        }
+        if (cause != null) {
+            span.failed(cause);
+        }
+        span.close();
+    }
+
+    private IOException closed() {
+        return new IOException("Rest client for " + uri + " has been closed");
+    }
+
+    private static void release(ConcurrencyLimiter.Permit permit) {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /**
+     * Decodes a result returned by Moodle. The body is parsed once,
+     * directly from the bytes. Errors for requests returning an array
+     * are reported by Moodle as JSON object, so the first token
+     * decides whether the error or the result is decoded.
+     *
+     * @param <T> the generic type
+     * @param resultType the result type
+     * @param body the body
+     * @return the result
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    /* default */ static <T> T decode(Class<T> resultType, InputStream body)
+            throws IOException {
+        if (body == null) {
             return null;
         }
+        try (JsonParser parser = mapper.createParser(body)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT
+                && resultType.isArray()) {
+                throw new MoodleException(
+                    reader(MoodleErrorValues.class).readValue(parser));
+            }
+            return reader(resultType).readValue(parser);
+        } catch (MoodleException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Unparsable result: " + e.getMessage(), e);
+        }
+    }
 
-        try (var resultData = new PushbackReader(
-            new InputStreamReader(response.body(), "utf-8"), 8)) {
-            if (resultType.isArray()) {
-                // Errors for requests returning an array are
-                // reported as JSON object.
-                char[] peekData = new char[2];
-                int peeked = resultData.read(peekData, 0, peekData.length);
-                resultData.unread(peekData, 0, peeked);
-                if (peeked > 0 && peekData[0] != '[') {
-                    mapper.readValue(resultData, MoodleErrorValues.class);
+    /**
+     * Decodes the elements of an array in the response one by one
+     * and passes them to the consumer.
+     *
+     * @param <E> the element type
+     * @param elementType the element type
+     * @param arrayField the field with the array or `null`
+     * @param body the body
+     * @param consumer the consumer
+     * @return the number of elements
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @SuppressWarnings("PMD.CognitiveComplexity")
+    /* default */ static <E> long decodeStreaming(Class<E> elementType,
+            String arrayField, InputStream body, Consumer<? super E> consumer)
+            throws IOException {
+        if (body == null) {
+            return 0;
+        }
+        try (JsonParser parser = mapper.createParser(body)) {
+            var token = parser.nextToken();
+            if (arrayField == null) {
+                if (token == JsonToken.START_OBJECT) {
                     throw new MoodleException(
-                        mapper.readValue(resultData, MoodleErrorValues.class));
+                        reader(MoodleErrorValues.class).readValue(parser));
                 }
+                return streamArray(parser, elementType, consumer);
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IOException("Unparsable result: object expected");
             }
-            return mapper.readValue(resultData, resultType);
+            long count = 0;
+            boolean found = false;
+            ObjectNode others = mapper.createObjectNode();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY
+                    && arrayField.equals(name)) {
+                    count = streamArray(parser, elementType, consumer);
+                    found = true;
+                    continue;
+                }
+                if (parser.currentToken().isScalarValue()) {
+                    others.set(name, parser.readValueAsTree());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (!found && others.has("exception")) {
+                throw new MoodleException(
+                    reader(MoodleErrorValues.class).readValue(others));
+            }
+            return count;
+        } catch (MoodleException e) {
+            throw e;
         } catch (IOException e) {
             throw new IOException("Unparsable result: " + e.getMessage(), e);
         }
     }
+
+    private static <E> long streamArray(JsonParser parser,
+            Class<E> elementType, Consumer<? super E> consumer)
+            throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Array expected");
+        }
+        ObjectReader reader = reader(elementType);
+        long count = 0;
+        for (var token = parser.nextToken(); token != JsonToken.END_ARRAY;
+                token = parser.nextToken()) {
+            if (token == null) {
+                throw new IOException("Unexpected end of input");
+            }
+            consumer.accept(reader.readValue(parser));
+            count += 1;
+        }
+        return count;
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the retries to a percentage of the invocations. Every
+ * invocation deposits the configured percentage of a retry into
+ * the budget, every retry withdraws a full retry. The balance is
+ * capped, which allows a small number of retries even with little
+ * traffic, while retries cannot multiply the load when the server
+ * is failing.
+ */
+public class RetryBudget {
+
+    private static final long SCALE = 1000;
+    private static final long MAX_BALANCE = 10 * SCALE;
+
+    private final AtomicLong balance = new AtomicLong(MAX_BALANCE);
+    private volatile long deposit;
+
+    /**
+     * Instantiates a new retry budget.
+     *
+     * @param percent the percentage of invocations that may be retried
+     */
+    public RetryBudget(int percent) {
+        setPercent(percent);
+    }
+
+    /**
+     * Sets the percentage of invocations that may be retried.
+     *
+     * @param percent the percent
+     * @return the retry budget
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public RetryBudget setPercent(int percent) {
+        deposit = Math.max(0, percent) * SCALE / 100;
+        return this;
+    }
+
+    /**
+     * Records an invocation.
+     */
+    public void deposit() {
+        long amount = deposit;
+        balance.accumulateAndGet(amount,
+            (current, add) -> Math.min(MAX_BALANCE, current + add));
+    }
+
+    /**
+     * Withdraws a retry from the budget, if available.
+     *
+     * @return true, if the retry may be made
+     */
+    public boolean tryWithdraw() {
+        while (true) {
+            long current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+}
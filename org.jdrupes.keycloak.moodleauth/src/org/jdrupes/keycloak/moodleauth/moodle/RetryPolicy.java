@@ -0,0 +1,44 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.time.Duration;
+
+/**
+ * Decides if and when a failed invocation is retried by the
+ * {@link RestClient}.
+ */
+@FunctionalInterface
+public interface RetryPolicy {
+
+    /** A policy that never retries. */
+    RetryPolicy NONE = (retry, cause, idempotent) -> null;
+
+    /**
+     * Returns the delay before the given retry or `null` if the
+     * invocation should not be retried.
+     *
+     * @param retry the number of the retry, starting with 1
+     * @param cause the cause of the failure
+     * @param idempotent whether the invocation may safely be repeated
+     * after it may have been (partially) processed by the server
+     * @return the delay or `null`
+     */
+    Duration retryDelay(int retry, Throwable cause, boolean idempotent);
+}
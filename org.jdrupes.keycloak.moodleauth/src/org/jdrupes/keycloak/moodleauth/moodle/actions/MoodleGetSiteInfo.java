@@ -21,6 +21,8 @@ package org.jdrupes.keycloak.moodleauth.moodle.actions;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.jdrupes.keycloak.moodleauth.moodle.ProjectionDecoder;
 import org.jdrupes.keycloak.moodleauth.moodle.RestAction;
 import org.jdrupes.keycloak.moodleauth.moodle.RestClient;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleSiteInfo;
@@ -30,6 +32,11 @@ import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleSiteInfo;
  */
 public class MoodleGetSiteInfo extends RestAction {
 
+    private static final String FUNCTION = "core_webservice_get_site_info";
+    private static final ProjectionDecoder<MoodleSiteInfo> DECODER
+        = new ProjectionDecoder<>(MoodleSiteInfo.class, "sitename",
+            "username", "firstname", "lastname", "fullname", "lang");
+
     /**
      * Creates the action.
      *
@@ -46,8 +53,18 @@ public class MoodleGetSiteInfo extends RestAction {
      */
     @SuppressWarnings("PMD.AvoidLiteralsInIfCondition")
     public MoodleSiteInfo invoke() throws IOException {
-        return client.invoke(MoodleSiteInfo.class, Map.of(
-            "wsfunction", "core_webservice_get_site_info"),
-            Collections.emptyMap());
+        return RestClient.await(invokeAsync());
+    }
+
+    /**
+     * Invoke the action without blocking. The response includes,
+     * among others, the (long) list of functions available to the
+     * user. Only the fields of {@link MoodleSiteInfo} are decoded.
+     *
+     * @return the future site info
+     */
+    public CompletableFuture<MoodleSiteInfo> invokeAsync() {
+        return client.invokeAsync(DECODER, Map.of("wsfunction", FUNCTION),
+            Collections.emptyMap(), true);
     }
 }
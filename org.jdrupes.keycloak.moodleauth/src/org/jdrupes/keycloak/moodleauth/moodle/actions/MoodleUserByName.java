@@ -21,6 +21,7 @@ package org.jdrupes.keycloak.moodleauth.moodle.actions;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.jdrupes.keycloak.moodleauth.moodle.RestAction;
 import org.jdrupes.keycloak.moodleauth.moodle.RestClient;
 import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleErrorValues;
@@ -68,16 +69,28 @@ public class MoodleUserByName extends RestAction {
      * @return the moodle course
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    @SuppressWarnings("PMD.AvoidLiteralsInIfCondition")
     public MoodleUser invoke(String userName) throws IOException {
-        var users = client.invoke(MoodleUser[].class, Map.of(
+        return RestClient.await(invokeAsync(userName));
+    }
+
+    /**
+     * Invoke the action without blocking.
+     *
+     * @param userName the user name
+     * @return the future moodle user
+     */
+    @SuppressWarnings("PMD.AvoidLiteralsInIfCondition")
+    public CompletableFuture<MoodleUser> invokeAsync(String userName) {
+        return client.invokeAsync(MoodleUser[].class, Map.of(
             "wsfunction", "core_user_get_users_by_field"),
             Map.of("field", "username",
-                "values", List.of(userName)));
-        if (users.length != 1) {
-            throw new IllegalArgumentException(
-                "Course \"" + userName + "\"not found.");
-        }
-        return users[0];
+                "values", List.of(userName)))
+            .thenApply(users -> {
+                if (users.length != 1) {
+                    throw new IllegalArgumentException(
+                        "Course \"" + userName + "\"not found.");
+                }
+                return users[0];
+            });
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle.actions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.jdrupes.keycloak.moodleauth.moodle.RestAction;
+import org.jdrupes.keycloak.moodleauth.moodle.RestClient;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
+
+/**
+ * Find many users by id, username or email. The values are split
+ * into chunks, each of which is looked up with a single request.
+ * A limited number of requests is run in parallel.
+ *
+ * Moodle may have several users with the same email address. Such
+ * a value doesn't identify a user and is therefore reported as
+ * ambiguous instead of being mapped to one of the users.
+ */
+public class MoodleUsersByField extends RestAction {
+
+    private static final String FUNCTION = "core_user_get_users_by_field";
+
+    private final Field field;
+    private int chunkSize = 200;
+    private int parallelism = 4;
+
+    /**
+     * The fields that can be used for looking up users.
+     */
+    public enum Field {
+        /** The user's id. */
+        ID("id", u -> String.valueOf(u.getId())),
+        /** The user's (login) name. */
+        USERNAME("username", MoodleUser::getUsername),
+        /** The user's email address. */
+        EMAIL("email", MoodleUser::getEmail);
+
+        private final String name;
+        private final Function<MoodleUser, String> getter;
+
+        Field(String name, Function<MoodleUser, String> getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+    }
+
+    /**
+     * The result of a lookup.
+     *
+     * @param users the users found, indexed by the value that they
+     * matched
+     * @param ambiguous the values that matched more than one user
+     */
+    public record Matches(Map<String, MoodleUser> users,
+            Set<String> ambiguous) {
+    }
+
+    /**
+     * Creates the action.
+     *
+     * @param client the client
+     * @param field the field used for the lookup
+     */
+    public MoodleUsersByField(RestClient client, Field field) {
+        super(client);
+        this.field = field;
+    }
+
+    /**
+     * Sets the number of values looked up with a single request.
+     * Every value is sent as a parameter of its own, so the size
+     * must stay well below PHP's `max_input_vars` (1000 by default).
+     *
+     * @param chunkSize the chunk size, must be positive
+     * @return the action
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleUsersByField setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(
+                "Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of requests run in parallel.
+     *
+     * @param parallelism the parallelism, must be positive
+     * @return the action
+     */
+    @SuppressWarnings("PMD.LinguisticNaming")
+    public MoodleUsersByField setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                "Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Invoke the action.
+     *
+     * @param values the values to look up
+     * @return the matches
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Matches invoke(Collection<String> values)
+            throws IOException {
+        return RestClient.await(invokeAsync(values));
+    }
+
+    /**
+     * Invoke the action without blocking. Values for which no user
+     * has been found are not included in the result. Values that
+     * matched more than one user are only included in
+     * {@link Matches#ambiguous()}. Usernames and emails are matched
+     * case insensitively, ids by their numeric value (i.e. "007"
+     * matches the user with id 7).
+     *
+     * @param values the values to look up
+     * @return the future matches
+     */
+    public CompletableFuture<Matches>
+            invokeAsync(Collection<String> values) {
+        // Map normalized values to the values as passed
+        Map<String, String> requested = new LinkedHashMap<>();
+        for (var value : values) {
+            requested.putIfAbsent(normalize(value), value);
+        }
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = null;
+        for (var value : requested.values()) {
+            if (chunk == null || chunk.size() >= chunkSize) {
+                chunk = new ArrayList<>(chunkSize);
+                chunks.add(chunk);
+            }
+            chunk.add(value);
+        }
+        var result = new Matches(new ConcurrentHashMap<>(),
+            ConcurrentHashMap.newKeySet());
+        var nextChunk = new AtomicInteger();
+        var workers = new CompletableFuture<?>[Math.min(parallelism,
+            chunks.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = lookup(chunks, nextChunk, requested, result);
+        }
+        return CompletableFuture.allOf(workers).thenApply(v -> {
+            result.ambiguous().forEach(result.users()::remove);
+            return result;
+        });
+    }
+
+    /**
+     * Looks up the next chunk and continues with the chunk after
+     * that when done, until all chunks have been processed.
+     */
+    private CompletableFuture<Void> lookup(List<List<String>> chunks,
+            AtomicInteger nextChunk, Map<String, String> requested,
+            Matches result) {
+        int index = nextChunk.getAndIncrement();
+        if (index >= chunks.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return client.invokeAsync(MoodleUser[].class,
+            Map.of("wsfunction", FUNCTION),
+            Map.of("field", field.name, "values", chunks.get(index)))
+            .thenAccept(users -> {
+                for (var user : users) {
+                    var key = field.getter.apply(user);
+                    var value = key == null ? null
+                        : requested.get(normalize(key));
+                    if (value == null) {
+                        continue;
+                    }
+                    var previous = result.users().putIfAbsent(value, user);
+                    if (previous != null
+                        && previous.getId() != user.getId()) {
+                        result.ambiguous().add(value);
+                    }
+                }
+            }).thenCompose(v -> lookup(chunks, nextChunk, requested, result));
+    }
+
+    private String normalize(String value) {
+        if (field != Field.ID) {
+            return value.trim().toLowerCase(Locale.ROOT);
+        }
+        try {
+            return String.valueOf(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid user id: " + value,
+                e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle.actions;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.LongStream;
+import org.jdrupes.keycloak.moodleauth.moodle.RestAction;
+import org.jdrupes.keycloak.moodleauth.moodle.RestClient;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleUser;
+
+/**
+ * Find the users with ids in a given range. Moodle's web service API
+ * has no function that returns the users page by page, so the users
+ * are retrieved by windows of ids. Ids of deleted users are silently
+ * skipped by Moodle. The lookup is delegated to
+ * {@link MoodleUsersByField}, which splits large windows into
+ * several requests.
+ */
+public class MoodleUsersById extends RestAction {
+
+    private final MoodleUsersByField byField;
+
+    /**
+     * Creates the action.
+     *
+     * @param client the client
+     */
+    public MoodleUsersById(RestClient client) {
+        super(client);
+        byField = new MoodleUsersByField(client, MoodleUsersByField.Field.ID);
+    }
+
+    /**
+     * Invoke the action.
+     *
+     * @param firstId the first id
+     * @param count the number of ids
+     * @return the users found
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public List<MoodleUser> invoke(long firstId, int count)
+            throws IOException {
+        return RestClient.await(invokeAsync(firstId, count));
+    }
+
+    /**
+     * Invoke the action without blocking.
+     *
+     * @param firstId the first id
+     * @param count the number of ids
+     * @return the future users, ordered by id
+     */
+    public CompletableFuture<List<MoodleUser>> invokeAsync(long firstId,
+            int count) {
+        return byField.invokeAsync(LongStream.range(firstId, firstId + count)
+            .mapToObj(String::valueOf).toList())
+            .thenApply(matches -> matches.users().values().stream()
+                .sorted(Comparator.comparingLong(MoodleUser::getId))
+                .toList());
+    }
+}
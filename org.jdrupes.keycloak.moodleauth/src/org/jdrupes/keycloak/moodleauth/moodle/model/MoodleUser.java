@@ -27,10 +27,12 @@ import java.util.Objects;
 public class MoodleUser extends MoodleErrorValues {
 
     private long id;
+    private String username;
     private String lastname;
     private String firstname;
     private String fullname;
     private String email;
+    private boolean suspended;
 
     /**
      * @return the id
@@ -46,6 +48,20 @@ public class MoodleUser extends MoodleErrorValues {
         this.id = id;
     }
 
+    /**
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @param username the username to set
+     */
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
     /**
      * @return the lastname
      */
@@ -102,6 +118,20 @@ public class MoodleUser extends MoodleErrorValues {
         this.email = email;
     }
 
+    /**
+     * @return true, if the user is suspended
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * @param suspended the suspended to set
+     */
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(id);
@@ -31,16 +31,34 @@ public interface MoodleClient extends AutoCloseable {
     @Override
     void close();
 
+    /**
+     * Invoke some function. Allows the invocation of functions that
+     * haven't been typed yet. As the function may modify data, the
+     * request is not assumed to be idempotent, i.e. it is only
+     * retried if it has not been processed by the server.
+     *
+     * @param wsfunction the function
+     * @param params the parameters
+     * @return the result
+     */
+    default Object invoke(String wsfunction, Map<String, Object> params)
+            throws IOException {
+        return invoke(wsfunction, params, false);
+    }
+
     /**
      * Invoke some function. Allows the invocation of functions that
      * haven't been typed yet.
      *
      * @param wsfunction the function
      * @param params the parameters
+     * @param idempotent whether the request may be repeated after
+     * it may have been (partially) processed by the server, i.e.
+     * `true` only for functions known to be read-only
      * @return the result
      */
-    Object invoke(String wsfunction, Map<String, Object> params)
-            throws IOException;
+    Object invoke(String wsfunction, Map<String, Object> params,
+            boolean idempotent) throws IOException;
 
     /**
      * The authenticated moodle user.
@@ -50,10 +68,12 @@ public interface MoodleClient extends AutoCloseable {
     MoodleUser moodleUser();
 
     /**
-     * The site info (includes information about the user)
+     * The site info (includes information about the user). May
+     * be obtained from Moodle when invoked for the first time.
      *
      * @return the moodle site info
+     * @throws IOException Signals that an I/O exception has occurred.
      */
-    MoodleSiteInfo siteInfo();
+    MoodleSiteInfo siteInfo() throws IOException;
 
 }
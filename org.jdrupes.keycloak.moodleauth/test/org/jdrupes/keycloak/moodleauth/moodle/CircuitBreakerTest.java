@@ -0,0 +1,181 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.jdrupes.keycloak.moodleauth.moodle.CircuitBreaker.State;
+import org.jdrupes.keycloak.moodleauth.moodle.model.MoodleErrorValues;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the state transitions of the {@link CircuitBreaker}.
+ */
+class CircuitBreakerTest {
+
+    private static final Duration FAST = Duration.ofMillis(10);
+    private static final Duration SLOW = Duration.ofSeconds(2);
+    private static final IOException FAILURE = new IOException("Test");
+
+    /**
+     * Window of 4 calls, opens at 50% failures after at least
+     * 4 calls, 1 second slow call threshold, 2 probes.
+     */
+    private static CircuitBreaker breaker(Duration openDuration) {
+        return new CircuitBreaker("test", 4, 4, 50, openDuration,
+            Duration.ofSeconds(1), 2);
+    }
+
+    private static void record(CircuitBreaker breaker, boolean... failed) {
+        for (var failure : failed) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(FAST, failure ? FAILURE : null);
+        }
+    }
+
+    private static MoodleException moodleError(String errorCode) {
+        var error = new MoodleErrorValues();
+        error.setErrorcode(errorCode);
+        return new MoodleException(error);
+    }
+
+    @Test
+    void staysClosedUntilMinimumCalls() {
+        var breaker = breaker(Duration.ofMinutes(1));
+        record(breaker, true, true, true);
+        assertEquals(State.CLOSED, breaker.state());
+        record(breaker, true);
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    void opensAtFailureRate() {
+        var breaker = breaker(Duration.ofMinutes(1));
+        record(breaker, false, false, false, true);
+        assertEquals(State.CLOSED, breaker.state());
+        record(breaker, true);
+        assertEquals(State.OPEN, breaker.state());
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(2, breaker.rejectedCalls());
+    }
+
+    @Test
+    void forgetsCallsOutsideWindow() {
+        var breaker = breaker(Duration.ofMinutes(1));
+        record(breaker, true, false, false, false);
+        record(breaker, false, false, false, false);
+        record(breaker, true);
+        assertEquals(State.CLOSED, breaker.state());
+        record(breaker, true);
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    void countsSlowCallsAsFailures() {
+        var breaker = breaker(Duration.ofMinutes(1));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(SLOW, null);
+        }
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    void ignoresMoodleErrorsExceptLockTimeouts() {
+        var breaker = breaker(Duration.ofMinutes(1));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(FAST, moodleError("invalidparameter"));
+        }
+        assertEquals(State.CLOSED, breaker.state());
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(FAST, moodleError("ex_unabletolock"));
+        }
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    void limitsProbesWhenHalfOpen() {
+        var breaker = breaker(Duration.ZERO);
+        record(breaker, true, true, true, true);
+        assertEquals(State.OPEN, breaker.state());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, breaker.state());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.rejectedCalls());
+    }
+
+    @Test
+    void closesAfterSuccessfulProbes() {
+        var breaker = breaker(Duration.ZERO);
+        record(breaker, true, true, true, true);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        breaker.record(FAST, null);
+        assertEquals(State.HALF_OPEN, breaker.state());
+        breaker.record(FAST, null);
+        assertEquals(State.CLOSED, breaker.state());
+
+        // Starts with an empty window
+        record(breaker, true, true, true);
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    void reopensWhenProbeFails() {
+        var breaker = breaker(Duration.ofMillis(50));
+        record(breaker, true, true, true, true);
+        assertFalse(breaker.tryAcquire());
+        await(Duration.ofMillis(100));
+        assertTrue(breaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, breaker.state());
+        breaker.record(FAST, FAILURE);
+        assertEquals(State.OPEN, breaker.state());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void reportsTransitions() {
+        List<String> transitions = new ArrayList<>();
+        var breaker = breaker(Duration.ZERO)
+            .setListener((from, to) -> transitions.add(from + ">" + to));
+        record(breaker, true, true, true, true);
+        record(breaker, false, false);
+        assertEquals(List.of("CLOSED>OPEN", "OPEN>HALF_OPEN",
+            "HALF_OPEN>CLOSED"), transitions);
+    }
+
+    private static void await(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.jdrupes.keycloak.moodleauth.moodle.ConcurrencyLimiter.Permit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link ConcurrencyLimiter}.
+ */
+class ConcurrencyLimiterTest {
+
+    private static final Duration FAST = Duration.ofMillis(10);
+    private static final Instant FAR_AWAY = Instant.now().plusSeconds(3600);
+
+    /**
+     * Limit starts at 4 and varies between 2 and 6, 2 requests may
+     * wait, responses above 1 second indicate an overload.
+     */
+    private static ConcurrencyLimiter limiter() {
+        return new ConcurrencyLimiter("test", 4, 2, 6, 2,
+            Duration.ofSeconds(1));
+    }
+
+    private static Permit acquired(ConcurrencyLimiter limiter)
+            throws Exception {
+        var permit = limiter.acquire(FAR_AWAY);
+        assertTrue(permit.isDone());
+        return permit.get();
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        var thrown = assertThrows(ExecutionException.class,
+            () -> future.get(5, TimeUnit.SECONDS));
+        return thrown.getCause();
+    }
+
+    @Test
+    void grantsPermitsUpToLimit() throws Exception {
+        var limiter = limiter();
+        for (int i = 0; i < 4; i++) {
+            acquired(limiter);
+        }
+        assertEquals(4, limiter.inFlight());
+        var waiting = limiter.acquire(FAR_AWAY);
+        assertFalse(waiting.isDone());
+        assertEquals(1, limiter.queued());
+    }
+
+    @Test
+    void grantsWaitingRequestOnRelease() throws Exception {
+        var limiter = limiter();
+        var first = acquired(limiter);
+        for (int i = 0; i < 3; i++) {
+            acquired(limiter);
+        }
+        var waiting = limiter.acquire(FAR_AWAY);
+        first.release(FAST, null);
+        assertTrue(waiting.isDone());
+        assertEquals(0, limiter.queued());
+        assertEquals(4, limiter.inFlight());
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull() throws Exception {
+        var limiter = limiter();
+        for (int i = 0; i < 4; i++) {
+            acquired(limiter);
+        }
+        limiter.acquire(FAR_AWAY);
+        limiter.acquire(FAR_AWAY);
+        var rejected = limiter.acquire(FAR_AWAY);
+        assertTrue(failure(rejected) instanceof LimitExceededException);
+        assertEquals(1, limiter.rejectedCalls());
+        assertEquals(2, limiter.queued());
+    }
+
+    @Test
+    void rejectsWhenDeadlineIsReached() throws Exception {
+        var limiter = limiter();
+        for (int i = 0; i < 4; i++) {
+            acquired(limiter);
+        }
+        var waiting = limiter.acquire(Instant.now().plusMillis(50));
+        assertTrue(failure(waiting) instanceof LimitExceededException);
+        assertEquals(0, limiter.queued());
+        assertEquals(1, limiter.rejectedCalls());
+    }
+
+    @Test
+    void reducesLimitOnOverload() throws Exception {
+        var limiter = limiter();
+        acquired(limiter).release(Duration.ofSeconds(2), null);
+        assertEquals(2, limiter.limit());
+        acquired(limiter).release(FAST, new HttpTimeoutException("Test"));
+        assertEquals(2, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void increasesLimitSlowlyOnSuccess() throws Exception {
+        var limiter = limiter();
+        // Increased by one after about "limit" successful requests
+        for (int i = 0; i < 4; i++) {
+            acquired(limiter).release(FAST, null);
+        }
+        assertEquals(4, limiter.limit());
+        acquired(limiter).release(FAST, null);
+        assertEquals(5, limiter.limit());
+        for (int i = 0; i < 100; i++) {
+            acquired(limiter).release(FAST, null);
+        }
+        assertEquals(6, limiter.limit());
+    }
+
+    @Test
+    void keepsLimitOnOtherFailures() throws Exception {
+        var limiter = limiter();
+        acquired(limiter).release(FAST, new IOException("Test"));
+        acquired(limiter).release();
+        assertEquals(4, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void ignoresRepeatedRelease() throws Exception {
+        var limiter = limiter();
+        var permit = acquired(limiter);
+        acquired(limiter);
+        permit.release(FAST, null);
+        permit.release(FAST, null);
+        permit.release();
+        assertEquals(1, limiter.inFlight());
+    }
+}
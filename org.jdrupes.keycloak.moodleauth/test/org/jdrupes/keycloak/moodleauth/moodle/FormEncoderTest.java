@@ -0,0 +1,115 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jdrupes.keycloak.moodleauth.moodle.service.CommaSeparatedValues;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link FormEncoder} produces the same results as the
+ * encoding that it replaced ({@link LegacyFormEncoder}).
+ */
+class FormEncoderTest {
+
+    private static void assertSameAsLegacy(Map<String, Object> data) {
+        assertEquals(LegacyFormEncoder.encodeData(data),
+            FormEncoder.encode(data));
+    }
+
+    @Test
+    void encodesFlatMap() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("wsfunction", "core_user_get_users_by_field");
+        data.put("moodlewsrestformat", "json");
+        data.put("id", 42);
+        data.put("flag", true);
+        assertSameAsLegacy(data);
+    }
+
+    @Test
+    void encodesListsAndArrays() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("field", "username");
+        data.put("values", List.of("alice", "bob", "carol"));
+        data.put("ids", new Object[] { 1, 2, 3 });
+        assertSameAsLegacy(data);
+    }
+
+    @Test
+    void encodesNestedMaps() {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("function", "core_webservice_get_site_info");
+        first.put("arguments", "{}");
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("function", "core_user_get_users_by_field");
+        second.put("arguments", Map.of("field", "id",
+            "values", List.of(1, 2)));
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("requests", List.of(first, second));
+        data.put("options", Map.of("filter", Map.of("depth", 3)));
+        assertSameAsLegacy(data);
+    }
+
+    @Test
+    void usesQueryValueEncoder() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("ids", new CommaSeparatedValues(List.of(1, 2, 3)));
+        data.put("names", new CommaSeparatedValues(List.of("a b", "c,d")));
+        data.put("nested", Map.of("values",
+            new CommaSeparatedValues(List.of("x"))));
+        assertSameAsLegacy(data);
+    }
+
+    @Test
+    void encodesNonAsciiAndReservedCharacters() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", "Jörg Müller-Lüdenscheidt");
+        data.put("city", "Zürich & Genève");
+        data.put("cjk", "日本語");
+        data.put("emoji", "smile 😀");
+        data.put("reserved", "a=b&c+d%e/f?g#h[i]~*._-");
+        data.put("schlüssel", List.of("wert ä"));
+        assertSameAsLegacy(data);
+    }
+
+    @Test
+    void appendsToPrefix() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("values", List.of("ä"));
+        assertEquals("wstoken=abc&"
+            + LegacyFormEncoder.encodeData(data),
+            FormEncoder.encode("wstoken=abc", data));
+        assertEquals("wstoken=abc", FormEncoder.encode("wstoken=abc",
+            Map.of()));
+    }
+
+    @Test
+    void omitsNullValues() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("first", "1");
+        data.put("missing", null);
+        data.put("last", "2");
+        assertEquals("first=1&last=2", FormEncoder.encode(data));
+    }
+}
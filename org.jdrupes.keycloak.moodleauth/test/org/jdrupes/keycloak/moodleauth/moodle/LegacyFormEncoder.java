@@ -0,0 +1,121 @@
+/*
+ * This file is part of the Keycloak Moodle authenticator
+ * Copyright (C) 2024 Michael N. Lipp
+ *
+ * This program is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or 
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along 
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jdrupes.keycloak.moodleauth.moodle;
+
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.jdrupes.keycloak.moodleauth.moodle.service.QueryValueEncoder;
+
+/**
+ * The stream based encoding used by {@link RestClient} before it
+ * was replaced with {@link FormEncoder}. Kept as reference for the
+ * results of {@link FormEncoder} (same as the benchmarks' baseline).
+ */
+@SuppressWarnings("PMD.ClassNamingConventions")
+public final class LegacyFormEncoder {
+
+    private LegacyFormEncoder() {
+    }
+
+    /**
+     * Builds the query from the default params and the query params.
+     *
+     * @param defaultParams the default params
+     * @param queryParams the query params
+     * @return the query
+     */
+    public static String query(Map<String, Object> defaultParams,
+            Map<String, Object> queryParams) {
+        return Stream.concat(defaultParams.entrySet().stream(),
+            queryParams.entrySet().stream())
+            .map(e -> URLEncoder.encode(e.getKey(),
+                Charset.forName("utf-8")) + "="
+                + URLEncoder.encode(e.getValue().toString(),
+                    Charset.forName("utf-8")))
+            .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * Encodes the map following the non-standard conventions of
+     * PHP's `http_build_query`
+     *
+     * @param data the data
+     * @return the query string
+     */
+    public static String encodeData(Map<String, Object> data) {
+        return encodeStream(data.entrySet().stream(), null);
+    }
+
+    /**
+     * Used by {@link #encodeData(Map)} and recursively invoked as required.
+     *
+     * @param data a stream of entries
+     * @param keyBase the key base of `null` for the top-lebel invocation 
+     * @return the query string
+     */
+    @SuppressWarnings({ "unchecked", "PMD.CognitiveComplexity" })
+    public static String encodeStream(Stream<Map.Entry<String, Object>> data,
+            String keyBase) {
+        // Iterate over all entries in stream.
+        return data.map(e -> {
+            // Use entry's key as result's key or as "index" of existing key.
+            String key;
+            if (keyBase == null) {
+                key = e.getKey();
+            } else {
+                key = keyBase + '[' + e.getKey() + ']';
+            }
+            if (e.getValue() instanceof Map) {
+                return encodeStream(
+                    ((Map<String, Object>) e.getValue()).entrySet().stream(),
+                    key);
+            }
+            Stream<Object> valueStream = null;
+            if (e.getValue().getClass().isArray()) {
+                valueStream = Stream.of((Object[]) e.getValue());
+            } else if (e.getValue() instanceof Collection) {
+                valueStream = ((Collection<Object>) e.getValue()).stream();
+            }
+            if (valueStream != null) {
+                AtomicInteger counter = new AtomicInteger();
+                return encodeStream(valueStream.map(
+                    v -> new AbstractMap.SimpleEntry<>(
+                        Integer.toString(counter.getAndIncrement()), v)),
+                    key);
+            }
+            StringBuilder res = new StringBuilder()
+                .append(URLEncoder.encode(key, Charset.forName("utf-8")))
+                .append('=');
+            if (e.getValue() instanceof QueryValueEncoder) {
+                res.append(
+                    ((QueryValueEncoder) e.getValue()).asQueryValue());
+            } else {
+                res.append(URLEncoder.encode(e.getValue().toString(),
+                    Charset.forName("utf-8")));
+            }
+            return res.toString();
+        }).collect(Collectors.joining("&"));
+    }
+}